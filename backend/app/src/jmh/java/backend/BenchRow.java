@@ -0,0 +1,97 @@
+package backend;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.impl.ArrayTuple;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory {@link Row} shaped like a tasks row, so mapping can be benchmarked without a database.
+ */
+class BenchRow extends ArrayTuple implements Row {
+
+    static final String[] COLUMNS = columns();
+
+    private BenchRow(int size) {
+        super(size);
+    }
+
+    static List<Row> tasks(int count) {
+        List<Row> rows = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            rows.add(task(i));
+        }
+        return rows;
+    }
+
+    static BenchRow task(long id) {
+        BenchRow row = new BenchRow(COLUMNS.length);
+        row.addLong(id);
+        for (String column : TaskRepository.CHILD_TASK_COLUMNS) {
+            row.addValue(value(column, id));
+        }
+        return row;
+    }
+
+    private static Object value(String column, long id) {
+        switch (column) {
+            case "input_format":
+            case "output_format":
+                return format(id).encode();
+            case "eta":
+                return new JsonObject().put("days", 2).put("hours", 4).put("minutes", 30).encode();
+            case "name":
+                return "Generate invoice " + id;
+            case "slug":
+                return "generate-invoice-" + id;
+            case "description":
+                return "Builds the monthly invoice for a customer and mails it to \"billing\"";
+            case "help_text":
+                return "Runs after the ledger is closed";
+            case "dependent_task_slug":
+                return "close-ledger-" + id;
+            case "api_endpoint":
+                return "http://billing.internal/api/invoices";
+            case "email_list":
+                return "billing@example.com,finance@example.com";
+            case "action":
+                return "create";
+            case "parent_id":
+                return id / 100 + 1;
+            default:
+                return 1;
+        }
+    }
+
+    private static JsonObject format(long id) {
+        JsonObject properties = new JsonObject();
+        for (String field : new String[] {"customer_id", "amount", "currency", "due_date", "line_items", "notes"}) {
+            properties.put(field, new JsonObject().put("type", "string").put("required", true));
+        }
+        return new JsonObject().put("type", "object").put("version", id % 3).put("properties", properties);
+    }
+
+    private static String[] columns() {
+        String[] columns = new String[TaskRepository.CHILD_TASK_COLUMNS.length + 1];
+        columns[0] = "id";
+        System.arraycopy(TaskRepository.CHILD_TASK_COLUMNS, 0, columns, 1, TaskRepository.CHILD_TASK_COLUMNS.length);
+        return columns;
+    }
+
+    @Override
+    public String getColumnName(int pos) {
+        return pos < COLUMNS.length ? COLUMNS[pos] : null;
+    }
+
+    @Override
+    public int getColumnIndex(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
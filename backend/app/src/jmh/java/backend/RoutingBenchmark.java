@@ -0,0 +1,77 @@
+package backend;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback round trip of a request that never reaches the database, through the App's router
+ * (CORS handler plus every route registered before /stats/cache) or through a bare request
+ * handler. The difference is the per-request cost of routing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+    private static final int PORT = 8091;
+
+    @Param({"router", "plain"})
+    public String server;
+
+    private Vertx vertx;
+    private HttpClient client;
+
+    @Setup
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        if ("router".equals(server)) {
+            // the pool connects lazily, so no database is needed for /stats/cache
+            JsonObject config = await(App.loadConfig(vertx));
+            config.getJsonObject("http").put("port", PORT);
+            await(vertx.deployVerticle(App::new, new DeploymentOptions().setConfig(config)));
+        } else {
+            HttpServer plain = vertx.createHttpServer().requestHandler(req -> req.response().end("{}"));
+            await(plain.listen(PORT));
+        }
+        client = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(PORT).setKeepAlive(true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Benchmark
+    public Buffer request() throws Exception {
+        return await(client.request(HttpMethod.GET, "/stats/cache")
+            .compose(req -> req.send().compose(res -> res.body())));
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+}
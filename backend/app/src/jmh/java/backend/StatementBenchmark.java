@@ -0,0 +1,79 @@
+package backend;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of preparing an insert into tasks from a request body.
+ *
+ * concatenatedSql is how postTask used to build a fresh SQL string per request, bindValues is
+ * the parameter tuple handed to the cached prepared statement today.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementBenchmark {
+
+    private JsonObject body;
+
+    @Setup
+    public void setup() {
+        body = BenchRow.task(42).toJson();
+        for (String column : new String[] {"input_format", "output_format", "eta"}) {
+            body.put(column, new JsonObject(body.getString(column)));
+        }
+    }
+
+    @Benchmark
+    public String concatenatedSql() {
+        JsonObject jsonObject = body;
+        return "insert into tasks ("+
+            "name,slug,description,help_text,"+
+            "input_format,output_format,dependent_task_slug,repeats_on,"+
+            "bulk_input,input_http_method,api_endpoint,api_timeout_in_ms,"+
+            "response_type,is_json_input_needed,task_type,is_active,is_optional,"+
+            "eta,service_id,email_list,action,parent_id)"+"values("+
+            "'" + jsonObject.getString("name")+ "'"+ ","+
+            "'" +jsonObject.getString("slug")+ "'"+","+
+            "'" +jsonObject.getString("description")+"'"+","+
+            "'" +jsonObject.getString("help_text")+"'"+","+
+            "'" + jsonObject.getJsonObject("input_format") +"'"+","+
+            "'" + jsonObject.getJsonObject("output_format")+"'"+","+
+            "'" +jsonObject.getString("dependent_task_slug")+"'"+","+
+            jsonObject.getString("repeats_on")+","+
+            jsonObject.getString("bulk_input")+","+
+            jsonObject.getString("input_http_method")+","+
+            "'" +jsonObject.getString("api_endpoint")+"'"+","+
+            jsonObject.getString("api_timeout_in_ms")+","+
+            jsonObject.getString("response_type")+","+
+            jsonObject.getString("is_json_input_needed")+","+
+            jsonObject.getString("task_type")+","+
+            jsonObject.getString("is_active")+","+
+            jsonObject.getString("is_optional")+","+
+            "'" +jsonObject.getJsonObject("eta")+"'"+","+
+            jsonObject.getString("service_id")+","+
+            "'" +jsonObject.getString("email_list")+"'"+","+
+            "'" +jsonObject.getString("action")+ "'" + ","
+            +jsonObject.getString("parent_id") + ");";
+    }
+
+    @Benchmark
+    public Tuple bindValues() {
+        return TaskRepository.values(body, TaskRepository.CHILD_TASK_COLUMNS);
+    }
+}
@@ -0,0 +1,120 @@
+package backend;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of checking one payload against a task's input_format.
+ *
+ * interpreted reads the stored format text and walks it for every payload, the way a format
+ * kept as opaque JSON has to be used; compiled is the cached SchemaValidator. Payloads are a
+ * small flat record, a wide record of 30 fields and a nested order with 20 lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"small", "wide", "nested"})
+    public String payload;
+
+    private String formatText;
+    private JsonObject record;
+    private SchemaValidator compiled;
+
+    @Setup
+    public void setup() {
+        JsonObject format = new JsonObject();
+        record = new JsonObject();
+        switch (payload) {
+            case "small":
+                format.put("customer_id", "integer").put("email", "string").put("amount", "number").put("paid", "boolean");
+                record.put("customer_id", 42).put("email", "a@example.com").put("amount", 19.5).put("paid", true);
+                break;
+            case "wide":
+                for (int i = 0; i < 30; i++) {
+                    format.put("field_" + i, i % 2 == 0 ? "string" : "number");
+                    record.put("field_" + i, i % 2 == 0 ? "value " + i : (Object) i);
+                }
+                break;
+            default:
+                format.put("order_id", "integer")
+                    .put("customer", new JsonObject().put("id", "integer").put("name", "string"))
+                    .put("lines", new JsonArray().add(new JsonObject().put("sku", "string").put("qty", "integer").put("price", "number")));
+                JsonArray lines = new JsonArray();
+                for (int i = 0; i < 20; i++) {
+                    lines.add(new JsonObject().put("sku", "SKU-" + i).put("qty", i + 1).put("price", 2.5 * i));
+                }
+                record.put("order_id", 7).put("customer", new JsonObject().put("id", 3).put("name", "Ada")).put("lines", lines);
+        }
+        formatText = format.encode();
+        compiled = SchemaValidator.compile(formatText);
+    }
+
+    @Benchmark
+    public String interpreted() {
+        return walk(new JsonObject(formatText), record);
+    }
+
+    @Benchmark
+    public String compiled() {
+        return compiled.validate(record);
+    }
+
+    private static String walk(JsonObject format, JsonObject value) {
+        for (Map.Entry<String, Object> field : format) {
+            Object item = value.getValue(field.getKey());
+            if (item == null) {
+                return field.getKey() + " is missing";
+            }
+            String error = walkValue(field.getValue(), item);
+            if (error != null) {
+                return field.getKey() + error;
+            }
+        }
+        return null;
+    }
+
+    private static String walkValue(Object spec, Object item) {
+        if (spec instanceof JsonObject) {
+            return item instanceof JsonObject ? walk((JsonObject) spec, (JsonObject) item) : " must be object";
+        }
+        if (spec instanceof JsonArray) {
+            if (!(item instanceof JsonArray)) {
+                return " must be array";
+            }
+            // the iterator hands out nested objects as JsonObject
+            for (Object element : (JsonArray) item) {
+                String error = walkValue(((JsonArray) spec).getValue(0), element);
+                if (error != null) {
+                    return error;
+                }
+            }
+            return null;
+        }
+        switch (String.valueOf(spec)) {
+            case "string": return item instanceof String ? null : " must be string";
+            case "number": return item instanceof Number ? null : " must be number";
+            case "integer": return item instanceof Integer || item instanceof Long ? null : " must be integer";
+            case "boolean": return item instanceof Boolean ? null : " must be boolean";
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package backend;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.sqlclient.Pool;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Closed-loop HTTP load test of all eight API routes.
+ *
+ * By default the App runs in-process against H2 in MySQL mode, seeded with `masters` templates
+ * and `tasks` children each, so the numbers are reproducible on any box; `--db config` uses the
+ * database from the normal config instead. For every instance count the App is deployed with
+ * that many verticle instances, `connections` requests are kept in flight for `duration`
+ * seconds, cycling through the routes, and per route p50/p99 latency and requests/sec are
+ * reported together with the server's allocation rate.
+ *
+ *   gradle loadTest -PloadTestArgs="--instances 1,2,4 --duration 15 --compare baseline.json"
+ *
+ * `--routes POST/task,PUT/task/{id}` drives only the named routes and `--body-bytes n` pads
+ * every request body by n bytes, to look at one part of the server on its own. `--compress true`
+ * asks for gzip/deflate answers, `--http2 true` talks h2c, and `--wire true` sends everything
+ * through a byte-counting relay on the client event loop to report bytes on the wire.
+ * `--fields id,name,is_active` asks the two listing routes for those columns only.
+ * `--write-behind true` runs the App with the write-behind buffer, and `--hot-tasks n` points
+ * PUT /task/{id} at the first n seeded tasks only, as many writers updating a few rows would.
+ *
+ * The results are written as JSON to `--out` (build/loadtest/baseline.json) so two builds can be
+ * diffed; `--compare` prints the change against an earlier file. The client runs on one event
+ * loop of its own Vert.x instance and its allocations are excluded from the server figures.
+ */
+public class LoadTest {
+
+    private static final String H2_URL = "jdbc:h2:mem:loadtest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+
+    private int[] instanceCounts = {1, Runtime.getRuntime().availableProcessors()};
+    private int durationSeconds = 10;
+    private int warmupSeconds = 3;
+    private int connections = 64;
+    private int masters = 50;
+    private int tasksPerMaster = 20;
+    private int port = 8089;
+    private String db = "h2";
+    private Path out = Paths.get("build", "loadtest", "baseline.json");
+    private Path compare;
+    // only the routes named here, spaces left out (POST/task), all when null
+    private Set<String> only;
+    // padding added to every request body, to make body handling show up in the figures
+    private int bodyBytes;
+    // client side of the wire: Accept-Encoding gzip/deflate, h2c with prior knowledge, and
+    // counting the bytes through a relay between client and server
+    private boolean compress;
+    // ?fields= projection for the two listing routes, all columns when null
+    private String fields;
+    private boolean http2;
+    private boolean writeBehind;
+    // PUT /task/{id} updates one of the first hotTasks seeded tasks, any of them when 0
+    private int hotTasks;
+    private boolean wire;
+    private long wireBytesIn;
+    private long wireBytesOut;
+
+    private final Vertx server = Vertx.vertx();
+    private final Vertx client = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(1));
+    private Thread clientThread;
+
+    // ids of the seeded rows, requests pick from these
+    private long firstMasterId;
+    private long firstTaskId;
+    private long seededTasks;
+    // POST /task appends after the seeded rows, DELETE /task removes them again in the same order
+    private long nextDeleteId;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parse(args);
+        try {
+            test.run();
+        } finally {
+            test.client.close();
+            test.server.close();
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--instances":
+                    instanceCounts = Arrays.stream(value.split(",")).mapToInt(c -> Integer.parseInt(c.trim())).toArray();
+                    break;
+                case "--duration": durationSeconds = Integer.parseInt(value); break;
+                case "--warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--masters": masters = Integer.parseInt(value); break;
+                case "--tasks": tasksPerMaster = Integer.parseInt(value); break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--db": db = value; break;
+                case "--out": out = Paths.get(value); break;
+                case "--compare": compare = Paths.get(value); break;
+                case "--routes": only = new HashSet<>(Arrays.asList(value.replace(" ", "").split(","))); break;
+                case "--body-bytes": bodyBytes = Integer.parseInt(value); break;
+                case "--compress": compress = Boolean.parseBoolean(value); break;
+                case "--http2": http2 = Boolean.parseBoolean(value); break;
+                case "--wire": wire = Boolean.parseBoolean(value); break;
+                case "--fields": fields = value; break;
+                case "--write-behind": writeBehind = Boolean.parseBoolean(value); break;
+                case "--hot-tasks": hotTasks = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        JsonObject config = await(App.loadConfig(server));
+        config.getJsonObject("http").put("port", port);
+        if ("h2".equals(db)) {
+            config.put("db", new JsonObject()
+                .put("jdbc_url", H2_URL)
+                .put("driver_class", "org.h2.Driver")
+                .put("user", "sa")
+                .put("password", "")
+                .put("max_pool_size", config.getJsonObject("db").getInteger("max_pool_size", 30)));
+        }
+        seed(config.getJsonObject("db"));
+        if (writeBehind) {
+            config.put("write_behind", config.getJsonObject("write_behind", new JsonObject()).copy()
+                .put("enabled", true)
+                .put("journal_dir", Paths.get("build", "loadtest", "write-behind").toString()));
+            await(WriteBehind.deploy(server, config));
+        }
+        Promise<Thread> eventLoop = Promise.promise();
+        client.runOnContext(v -> eventLoop.complete(Thread.currentThread()));
+        clientThread = await(eventLoop.future());
+        int clientPort = wire ? await(startRelay()) : port;
+
+        JsonArray runs = new JsonArray();
+        for (int instances : instanceCounts) {
+            String deployment = await(server.deployVerticle(App::new,
+                new DeploymentOptions().setConfig(config).setInstances(instances)));
+            WebClient web = WebClient.create(client, new WebClientOptions()
+                .setDefaultPort(clientPort)
+                .setMaxPoolSize(connections)
+                .setKeepAlive(true)
+                .setDecompressionSupported(compress)
+                .setProtocolVersion(http2 ? HttpVersion.HTTP_2 : HttpVersion.HTTP_1_1)
+                .setHttp2ClearTextUpgrade(false));
+
+            drive(web, warmupSeconds);
+            long allocatedBefore = serverAllocatedBytes();
+            wireBytesIn = 0;
+            wireBytesOut = 0;
+            Route[] routes = drive(web, durationSeconds);
+            long allocated = serverAllocatedBytes() - allocatedBefore;
+
+            JsonObject run = report(instances, routes, allocated);
+            runs.add(run);
+            print(run);
+
+            web.close();
+            await(server.undeploy(deployment));
+        }
+
+        JsonObject baseline = new JsonObject()
+            .put("db", db)
+            .put("connections", connections)
+            .put("duration_seconds", durationSeconds)
+            .put("masters", masters)
+            .put("tasks_per_master", tasksPerMaster)
+            .put("body_bytes", bodyBytes)
+            .put("compress", compress)
+            .put("http2", http2)
+            .put("fields", fields)
+            .put("write_behind", writeBehind)
+            .put("hot_tasks", hotTasks)
+            .put("runs", runs);
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        Files.writeString(out, baseline.encodePrettily());
+        System.out.println("baseline written to " + out.toAbsolutePath());
+
+        if (compare != null) {
+            compare(new JsonObject(Files.readString(compare)), baseline);
+        }
+    }
+
+    // ======== data ======== //
+
+    private void seed(JsonObject dbConfig) throws Exception {
+        Pool pool = TaskRepository.createPool(server, dbConfig);
+        TaskRepository repository = new TaskRepository(pool);
+        if ("h2".equals(db)) {
+            await(new SchemaMigrator(server, pool).createSchema());
+        }
+        await(new SchemaMigrator(server, pool).migrate());
+
+        List<Object> masterIds = new ArrayList<>();
+        for (int m = 0; m < masters; m++) {
+            masterIds.add(TaskRepository.insertedId(await(repository.insertMaster(task("master-" + m, 0)))));
+        }
+        firstMasterId = ((Number) masterIds.get(0)).longValue();
+
+        TaskBatchWriter writer = new TaskBatchWriter(pool, 500, null, null);
+        await(writer.begin());
+        for (int m = 0; m < masters; m++) {
+            for (int t = 0; t < tasksPerMaster; t++) {
+                await(writer.add(task("task-" + m + "-" + t, firstMasterId + m)));
+            }
+        }
+        JsonArray ids = await(writer.commit());
+        firstTaskId = ids.getJsonObject(0).getLong("id");
+        seededTasks = ids.size();
+        nextDeleteId = firstTaskId + seededTasks;
+        await(pool.close());
+    }
+
+    private static JsonObject task(String slug, long parentId) {
+        JsonObject format = new JsonObject();
+        for (String field : new String[] {"customer_id", "amount", "currency", "due_date", "line_items", "notes"}) {
+            format.put(field, new JsonObject().put("type", "string").put("required", true));
+        }
+        return new JsonObject()
+            .put("name", "Load " + slug)
+            .put("slug", slug)
+            .put("description", "Generated by the load test")
+            .put("help_text", "")
+            .put("input_format", new JsonObject().put("type", "object").put("properties", format))
+            .put("output_format", new JsonObject().put("type", "object").put("properties", format))
+            .put("dependent_task_slug", "")
+            .put("repeats_on", 0)
+            .put("bulk_input", 0)
+            .put("input_http_method", 1)
+            .put("api_endpoint", "http://localhost:9999/api")
+            .put("api_timeout_in_ms", 1000)
+            .put("response_type", 0)
+            .put("is_json_input_needed", 1)
+            .put("task_type", 1)
+            .put("is_active", 1)
+            .put("is_optional", 0)
+            .put("eta", new JsonObject().put("hours", 1))
+            .put("service_id", 1)
+            .put("email_list", "ops@example.com")
+            .put("action", "create")
+            .put("parent_id", parentId);
+    }
+
+    // a field the API does not store, so only the body grows; short fields like a large format's
+    private JsonObject pad(JsonObject body) {
+        if (bodyBytes <= 0) {
+            return body;
+        }
+        JsonObject padding = new JsonObject();
+        for (int i = 0; i < bodyBytes / 32; i++) {
+            padding.put("field_" + i, "value number " + i);
+        }
+        return body.put("padding", padding);
+    }
+
+    private String projection() {
+        return fields == null ? "" : "?fields=" + fields;
+    }
+
+    private long randomMaster() {
+        return firstMasterId + ThreadLocalRandom.current().nextLong(masters);
+    }
+
+    private long randomTask() {
+        return firstTaskId + ThreadLocalRandom.current().nextLong(seededTasks);
+    }
+
+    private long updatedTask() {
+        return hotTasks > 0 ? firstTaskId + ThreadLocalRandom.current().nextLong(Math.min(hotTasks, seededTasks)) : randomTask();
+    }
+
+    // ======== load ======== //
+
+    private Route[] routes(WebClient web) {
+        Route[] all = {
+            new Route("GET /master", () -> web.get("/master" + projection())),
+            new Route("GET /master/{id}", () -> web.get("/master/" + randomMaster())),
+            new Route("POST /master", () -> web.post("/master"), () -> pad(task("load-master", 0))),
+            new Route("POST /task", () -> web.post("/task"), () -> pad(task("load-task", randomMaster()))),
+            new Route("GET /task/{id}", () -> web.get("/task/" + randomTask())),
+            new Route("PUT /task/{id}", () -> web.put("/task/" + updatedTask()), () -> pad(task("load-update", randomMaster()))),
+            new Route("GET /master/task/{id}", () -> web.get("/master/task/" + randomMaster() + projection())),
+            new Route("DELETE /task/{id}", () -> web.request(HttpMethod.DELETE, "/task/" + nextDeleteId++))
+        };
+        Route[] routes = Arrays.stream(all).filter(route -> only == null || only.contains(route.name.replace(" ", ""))).toArray(Route[]::new);
+        if (routes.length == 0) {
+            throw new IllegalArgumentException("--routes matches none of the routes");
+        }
+        return routes;
+    }
+
+    // keeps `connections` requests in flight on the client event loop, cycling through the routes
+    private Route[] drive(WebClient web, int seconds) throws Exception {
+        Route[] routes = routes(web);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Promise<Void> started = Promise.promise();
+        List<Future<Void>> loops = new ArrayList<>();
+        client.runOnContext(v -> {
+            for (int i = 0; i < connections; i++) {
+                Promise<Void> loop = Promise.promise();
+                next(routes, i, deadline, loop);
+                loops.add(loop.future());
+            }
+            started.complete();
+        });
+        await(started.future());
+        await(Future.all(loops));
+        return routes;
+    }
+
+    private void next(Route[] routes, int n, long deadline, Promise<Void> loop) {
+        if (System.nanoTime() >= deadline) {
+            loop.complete();
+            return;
+        }
+        Route route = routes[n % routes.length];
+        long start = System.nanoTime();
+        route.send().onComplete(res -> {
+            route.record(System.nanoTime() - start, res.succeeded() && res.result().statusCode() / 100 == 2);
+            next(routes, n + 1, deadline, loop);
+        });
+    }
+
+    // relays every client connection to the server on the client event loop, counting bytes both ways
+    private Future<Integer> startRelay() {
+        NetClient upstream = client.createNetClient(new NetClientOptions().setTcpNoDelay(true));
+        return client.createNetServer(new NetServerOptions().setTcpNoDelay(true)).connectHandler(downstream -> {
+            downstream.pause();
+            upstream.connect(port, "localhost").onComplete(res -> {
+                if (res.failed()) {
+                    downstream.close();
+                    return;
+                }
+                NetSocket server = res.result();
+                relay(downstream, server, n -> wireBytesOut += n);
+                relay(server, downstream, n -> wireBytesIn += n);
+                downstream.resume();
+            });
+        }).listen(0).map(NetServer::actualPort);
+    }
+
+    private static void relay(NetSocket from, NetSocket to, IntConsumer counter) {
+        from.handler(buffer -> {
+            counter.accept(buffer.length());
+            to.write(buffer);
+            if (to.writeQueueFull()) {
+                from.pause();
+                to.drainHandler(v -> from.resume());
+            }
+        });
+        from.closeHandler(v -> to.close());
+    }
+
+    // bytes allocated by every thread except the load generator's
+    private long serverAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            if (id != clientThread.getId() && id != Thread.currentThread().getId()) {
+                total += Math.max(0, threads.getThreadAllocatedBytes(id));
+            }
+        }
+        return total;
+    }
+
+    // ======== reporting ======== //
+
+    private JsonObject report(int instances, Route[] routes, long allocatedBytes) {
+        JsonObject byRoute = new JsonObject();
+        long requests = 0;
+        long errors = 0;
+        long[] all = new long[0];
+        for (Route route : routes) {
+            long[] latencies = route.latencies();
+            byRoute.put(route.name, summary(latencies, route.errors));
+            requests += latencies.length;
+            errors += route.errors;
+            all = concat(all, latencies);
+        }
+        JsonObject total = summary(all, errors)
+            .put("alloc_mb_per_second", allocatedBytes / 1024.0 / 1024.0 / durationSeconds)
+            .put("alloc_bytes_per_request", requests == 0 ? 0 : allocatedBytes / requests);
+        if (wire) {
+            total.put("wire_bytes_per_response", requests == 0 ? 0 : wireBytesIn / requests)
+                .put("wire_bytes_per_request", requests == 0 ? 0 : wireBytesOut / requests);
+        }
+        return new JsonObject()
+            .put("instances", instances)
+            .put("total", total)
+            .put("routes", byRoute);
+    }
+
+    private JsonObject summary(long[] latencies, long errors) {
+        Arrays.sort(latencies);
+        return new JsonObject()
+            .put("requests", latencies.length)
+            .put("errors", errors)
+            .put("rps", latencies.length / (double) durationSeconds)
+            .put("p50_ms", percentile(latencies, 0.50))
+            .put("p99_ms", percentile(latencies, 0.99));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    private static long[] concat(long[] a, long[] b) {
+        long[] all = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return all;
+    }
+
+    private static void print(JsonObject run) {
+        System.out.printf("%ninstances: %d%n", run.getInteger("instances"));
+        System.out.printf("%-24s %10s %8s %10s %10s%n", "route", "req/s", "errors", "p50 ms", "p99 ms");
+        JsonObject routes = run.getJsonObject("routes");
+        for (String name : routes.fieldNames()) {
+            printRow(name, routes.getJsonObject(name));
+        }
+        JsonObject total = run.getJsonObject("total");
+        printRow("total", total);
+        System.out.printf("server allocation: %.1f MB/s, %d bytes/request%n",
+            total.getDouble("alloc_mb_per_second"), total.getLong("alloc_bytes_per_request"));
+        if (total.containsKey("wire_bytes_per_response")) {
+            System.out.printf("on the wire: %d bytes/response, %d bytes/request%n",
+                total.getLong("wire_bytes_per_response"), total.getLong("wire_bytes_per_request"));
+        }
+    }
+
+    private static void printRow(String name, JsonObject summary) {
+        System.out.printf("%-24s %10.0f %8d %10.2f %10.2f%n", name, summary.getDouble("rps"),
+            summary.getLong("errors"), summary.getDouble("p50_ms"), summary.getDouble("p99_ms"));
+    }
+
+    private static void compare(JsonObject before, JsonObject after) {
+        System.out.printf("%nchange against the earlier baseline (negative latency / positive req/s is better)%n");
+        for (int i = 0; i < after.getJsonArray("runs").size(); i++) {
+            JsonObject now = after.getJsonArray("runs").getJsonObject(i);
+            JsonObject then = null;
+            for (Object run : before.getJsonArray("runs")) {
+                if (((JsonObject) run).getInteger("instances").equals(now.getInteger("instances"))) {
+                    then = (JsonObject) run;
+                }
+            }
+            if (then == null) {
+                continue;
+            }
+            System.out.printf("instances: %d%n", now.getInteger("instances"));
+            System.out.printf("%-24s %10s %10s %10s%n", "route", "req/s", "p50", "p99");
+            for (String name : now.getJsonObject("routes").fieldNames()) {
+                JsonObject a = then.getJsonObject("routes").getJsonObject(name);
+                if (a != null) {
+                    printChange(name, a, now.getJsonObject("routes").getJsonObject(name));
+                }
+            }
+            printChange("total", then.getJsonObject("total"), now.getJsonObject("total"));
+        }
+    }
+
+    private static void printChange(String name, JsonObject before, JsonObject after) {
+        System.out.printf("%-24s %9.1f%% %9.1f%% %9.1f%%%n", name,
+            change(before, after, "rps"), change(before, after, "p50_ms"), change(before, after, "p99_ms"));
+    }
+
+    private static double change(JsonObject before, JsonObject after, String field) {
+        double then = before.getDouble(field);
+        return then == 0 ? 0 : (after.getDouble(field) - then) * 100 / then;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get();
+    }
+
+    /** One route with its request factory and the latencies seen on the client event loop. */
+    private static class Route {
+        final String name;
+        private final Supplier<HttpRequest<Buffer>> request;
+        private final Supplier<JsonObject> body;
+        private long[] latencies = new long[1024];
+        private int count;
+        long errors;
+
+        Route(String name, Supplier<HttpRequest<Buffer>> request) {
+            this(name, request, null);
+        }
+
+        Route(String name, Supplier<HttpRequest<Buffer>> request, Supplier<JsonObject> body) {
+            this.name = name;
+            this.request = request;
+            this.body = body;
+        }
+
+        Future<HttpResponse<Buffer>> send() {
+            return body == null ? request.get().send() : request.get().sendJsonObject(body.get());
+        }
+
+        void record(long nanos, boolean ok) {
+            if (!ok) {
+                errors++;
+                return;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        long[] latencies() {
+            return Arrays.copyOf(latencies, count);
+        }
+    }
+}
@@ -6,31 +6,146 @@ package backend;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.*;
 
-import java.util.UUID;
-
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import io.vertx.config.ConfigRetriever;
+import io.vertx.config.ConfigRetrieverOptions;
+import io.vertx.config.ConfigStoreOptions;
 import io.vertx.core.*;
-import io.vertx.ext.jdbc.JDBCClient;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.CorsHandler;
+import io.vertx.micrometer.Label;
+import io.vertx.micrometer.MicrometerMetricsOptions;
+import io.vertx.micrometer.PrometheusScrapingHandler;
+import io.vertx.micrometer.VertxPrometheusOptions;
+import io.vertx.micrometer.backends.BackendRegistries;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
 
 public class App extends AbstractVerticle{
 
-    private JDBCClient client;
-    
+    static{
+        // before the first logger is made, see AsyncLogHandler.Manager
+        if(System.getProperty("java.util.logging.manager") == null){
+            System.setProperty("java.util.logging.manager", AsyncLogHandler.Manager.class.getName());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(App.class.getName());
+
+    /** Event bus address on which the ids of written or deleted tasks are published, as a JSON array. */
+    public static final String TASKS_CHANGED_ADDRESS = "tasks.changed";
+
+    // tells the cache meters of the instances apart
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    // upper bound for ?limit= on the paginated list routes
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // streamed rows are flushed to the socket in chunks of roughly this size
+    private static final int STREAM_CHUNK_SIZE = 16 * 1024;
+
+    // upper bound for ?batch_size= on the bulk insert routes
+    private static final int MAX_BATCH_SIZE = 5000;
+
+    private Pool pool;
+    private int insertBatchSize;
+    // http.max_body_bytes for a body or NDJSON line holding one object, http.max_batch_body_bytes for a JSON array of them
+    private long maxBodyBytes;
+    private long maxBatchBodyBytes;
+    private TaskRepository repository;
+    private MasterCache masterCache;
+    private ValidatorCache validators;
+    private TaskGraph taskGraph;
+    private TaskGraph masterGraph;
+    private JsonObject bulkConfig;
+    private WebClient bulkClient;
+    private TaskEvents events;
+    // stripes of the write-behind buffer, 0 when updates are written directly
+    private int writeBehindStripes;
+
+    private HttpServer server;
+    // ready once warmed up and listening, draining from the start of stop()
+    private boolean ready;
+    private boolean draining;
+    private int inFlight;
+
     @Override
-    public void start(){
+    public void start(Promise<Void> startPromise){
 
         // ========  connection with database ======== //
-        JsonObject config = new JsonObject()
-        .put("url", "jdbc:mysql://localhost:3306/taskdb")  // Database URL
-        .put("driver_class", "com.mysql.cj.jdbc.Driver")          // MySQL driver
-        .put("user", "neeraj")                                      // Database username
-        .put("password", "123")                                    // Database password
-        .put("max_pool_size", 30);                                 // Max pool size (optional)
+        // the pool is shared, every App instance in this Vert.x instance gets the same connections
+        JsonObject config = config().getJsonObject("db", new JsonObject());
+        pool = TaskRepository.createPool(vertx, config);
+        repository = new TaskRepository(pool);
+        insertBatchSize = config().getInteger("insert_batch_size", 500);
+        writeBehindStripes = WriteBehind.stripes(config());
+
+        // ========  master template cache ======== //
+        masterCache = new MasterCache(config().getJsonObject("cache", new JsonObject()));
+        validators = new ValidatorCache(config().getJsonObject("validators", new JsonObject()));
+        events = new TaskEvents(vertx, config().getJsonObject("events", new JsonObject()));
+        events.start();
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if(registry != null){
+            String instance = String.valueOf(INSTANCES.incrementAndGet());
+            masterCache.bindTo(registry, instance);
+            validators.bindTo(registry, instance);
+            registry.gauge("events_subscribers", Tags.of("instance", instance), events, TaskEvents::size);
+        }
+
+        // a master was written by some instance, drop what this one holds
+        vertx.eventBus().consumer(MasterCache.INVALIDATE_ADDRESS, msg -> {
+            masterCache.invalidateAll();
+            validators.invalidateMasters();
+        });
+        // tasks were written by some instance, their formats may have changed
+        vertx.eventBus().<JsonArray>consumer(TASKS_CHANGED_ADDRESS, msg -> invalidateTasks(msg.body()));
 
-        // Create JDBC client
-        client = JDBCClient.createShared(vertx, config);
+        bulkConfig = config().getJsonObject("bulk", new JsonObject());
+
+        // ========  dependency index ======== //
+        // one per Vert.x instance, built from the database by the first App instance to get here
+        taskGraph = sharedGraph("tasks", repository::streamTaskLinks,
+            row -> new TaskGraph.Link(row.getLong("id"), TaskGraph.longValue(row.getValue("parent_id")), row.getString("slug"), row.getString("dependent_task_slug")));
+        masterGraph = sharedGraph("masters", repository::streamMasterLinks,
+            row -> new TaskGraph.Link(row.getLong("id"), 0, row.getString("slug"), row.getString("dependent_task_slug")));
 
 
 
@@ -40,49 +155,211 @@ public class App extends AbstractVerticle{
         .allowedMethod(HttpMethod.GET)             // Allow specific HTTP methods
         .allowedMethod(HttpMethod.POST)
         .allowedMethod(HttpMethod.PUT)
+        .allowedMethod(HttpMethod.PATCH)
         .allowedMethod(HttpMethod.DELETE)
         .allowedHeader("Access-Control-Allow-Headers")
         .allowedHeader("Content-Type")
-        .allowedHeader("Authorization"));
+        .allowedHeader("Authorization")
+        .allowedHeader("If-Match")
+        .allowedHeader("If-None-Match")
+        .exposedHeader("ETag"));
+
+        // small answers are not worth compressing, they go out as they are
+        JsonObject compression = config().getJsonObject("http", new JsonObject()).getJsonObject("compression", new JsonObject());
+        int minCompressBytes = compression.getInteger("min_bytes", 1024);
+        if(compression.getBoolean("enabled", true) && minCompressBytes > 0){
+            router.route().handler(context->{
+                context.addHeadersEndHandler(v->{
+                    String length = context.response().headers().get(HttpHeaders.CONTENT_LENGTH);
+                    if(length != null && Long.parseLong(length) < minCompressBytes){
+                        context.response().putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+                    }
+                });
+                context.next();
+            });
+        }
+
+        // requests in flight, so stop() can wait for them. Once draining, keep-alive connections
+        // are closed after each answer, so their clients move to another instance.
+        router.route().handler(context->{
+            inFlight++;
+            context.addEndHandler(v -> inFlight--);
+            if(draining){
+                context.response().putHeader(HttpHeaders.CONNECTION, "close");
+            }
+            context.next();
+        });
 
-        router.get("/master").handler(this:: getMasters); // to get master task templates
-        router.get("/master/*").handler(this:: getMaster); // to get a particular master by master id
-        router.post("/master").handler(this:: postMaster); // to create master task template
+        // request log, only built when FINE is enabled
+        router.route().handler(context->{
+            if(LOG.isLoggable(Level.FINE)){
+                LOG.fine(context.request().method() + " " + context.request().uri());
+            }
+            context.next();
+        });
 
-        router.post("/task").handler(this:: postTask);  //to create task
+        // single-object bodies are read up to http.max_body_bytes, larger ones get 413 without being
+        // buffered. The batch and instantiate routes read their bodies themselves, see insertTasks.
+        JsonObject http = config().getJsonObject("http", new JsonObject());
+        maxBodyBytes = http.getLong("max_body_bytes", 1048576L);
+        maxBatchBodyBytes = http.getLong("max_batch_body_bytes", 16777216L);
+        BodyHandler body = BodyHandler.create(false).setBodyLimit(maxBodyBytes).setPreallocateBodyBuffer(true);
+
+        router.get("/master").handler(this:: getMasters); // to get master task templates (?fields=id,name to pick columns, ?is_active=&task_type=&service_id= to filter)
+        router.get("/master/dag").handler(this:: getMasterDag); // master templates in dependency order
+        router.get("/master/task/:parent/dag").handler(this:: getTaskDag); // a parent's tasks in dependency order, 409 on a cycle
+        router.get("/master/task/:parent/ready").handler(this:: getReadyTasks); // a parent's tasks whose dependency has completed (?completed=id,id)
+        router.get("/master/task/*").handler(this:: getChildTasks);// to get tasks by parent id (before /master/* so it is not taken for a master id)
+        router.get("/master/*").handler(this:: getMaster); // to get a particular master by master id
+        router.post("/master").handler(body).handler(this:: postMaster); // to create master task template
+
+        router.post("/task").handler(body).handler(this:: postTask);  //to create task
+        router.post("/task/batch").handler(this:: postTaskBatch); // to create many tasks in one transaction (JSON array or NDJSON)
+        router.post("/master/:id/instantiate").handler(this:: instantiateMaster); // to create child tasks from a master template
+        router.post("/task/:id/bulk").handler(this:: postBulkInput); // to push NDJSON/CSV records through a bulk_input task's endpoint
+        router.post("/task/:id/validate").handler(body).handler(this:: validateTaskPayload); // to check a payload against a task's input_format (?format=output for output_format)
+        router.post("/master/:id/validate").handler(body).handler(this:: validateMasterPayload); // same against a master template
+        router.get("/task").handler(this:: getTasks); // to list tasks of all parents, with ?fields= and filters (before /task/*)
         router.get("/task/*").handler(this:: getTask); // to get task by task id(task's id)
-        router.put("/task/*").handler(this:: updateTask); // to update task by task id(task's id) (useful in editing)
-        router.get("/master/task/*").handler(this:: getChildTasks);// to get tasks by parent id
-        router.delete("/task/*").handler(this::deleteTask); // to delete the task 
+        router.put("/task/*").handler(body).handler(this:: updateTask); // to update task by task id(task's id) (useful in editing), only the fields sent are written
+        router.patch("/task/*").handler(body).handler(this:: updateTask); // same as PUT
+        router.delete("/task/*").handler(this::deleteTask); // to delete the task
+
+        router.get("/events").handler(this::getEvents); // Server-Sent Events of task and master changes (?parent_id=id,id, 0 for masters)
+
+        router.get("/health/live").handler(this::getLiveness); // 200 while the process can answer at all
+        router.get("/health/ready").handler(this::getReadiness); // 200 when warmed up and taking traffic, 503 while draining
+        router.get("/stats/cache").handler(this::getCacheStats); // master cache hit/miss/eviction counters
+        router.get("/metrics").handler(PrometheusScrapingHandler.create()); // Prometheus scrape endpoint
+
+
 
+        // Create an HTTP server, instances deployed with the same port share it. The port is only
+        // bound once the instance is warmed up, so the first requests after a deploy do not wait
+        // for connections or a cold index.
+        int port = http.getInteger("port", 8080);
+        warmUp()
+        .compose(v -> vertx.createHttpServer(serverOptions(http)).requestHandler(router).listen(port))
+        .onComplete(res->{
+            if(res.succeeded()){
+                server = res.result();
+                ready = true;
+                LOG.info("server started at http://localhost:" + port);
+                startPromise.complete();
+            }else{
+                startPromise.fail(res.cause());
+            }
+        });
 
+    }
 
-        // Create an HTTP server
-        vertx.createHttpServer()
-            .requestHandler(router)
-            .listen(8080,res->{
-                if(res.succeeded()){
-                    System.out.println("server started at http://localhost:8080");
-                }else{
-                    System.out.println(res);
+    // ======== warm-up ======== //
+    // opens db.warm_connections pool connections and waits for the dependency indexes and the master list
+    private Future<Void> warmUp(){
+        int connections = config().getJsonObject("db", new JsonObject()).getInteger("warm_connections", 4);
+        List<Future<?>> warming = new ArrayList<>();
+        for(int i=0;i<connections;i++){
+            warming.add(pool.withConnection(conn -> conn.query("select 1").execute()));
+        }
+        warming.add(Future.fromCompletionStage(taskGraph.whenLoaded(), context));
+        warming.add(Future.fromCompletionStage(masterGraph.whenLoaded(), context));
+        warming.add(warmMasterList());
+        return Future.all(warming).mapEmpty();
+    }
+
+    // the unfiltered master list as GET /master caches it, unless it is larger than the cache takes
+    private Future<Void> warmMasterList(){
+        long generation = masterCache.generation();
+        Buffer body = Buffer.buffer().appendByte((byte) '[');
+        RowMapper mapper = new RowMapper();
+        return repository.streamMasters(TaskQuery.ALL, stream->{
+            Promise<Void> done = Promise.promise();
+            stream.exceptionHandler(done::tryFail);
+            stream.endHandler(v->{
+                masterCache.putList(body.appendByte((byte) ']'), generation);
+                done.tryComplete();
+            });
+            stream.handler(row->{
+                if(body.length() > 1){
+                    body.appendByte((byte) ',');
+                }
+                mapper.appendRow(body, row);
+                if(body.length() > masterCache.maxListBytes()){
+                    stream.close().onComplete(ar -> done.tryComplete());
                 }
             });
+            return done.future();
+        });
+    }
 
+    // ======== health ======== //
+    private void getLiveness(RoutingContext context){
+        context.response()
+        .setStatusCode(200)
+        .setStatusMessage("ok")
+        .end("live");
     }
 
-    
+    private void getReadiness(RoutingContext context){
+        boolean serving = ready && !draining;
+        context.response()
+        .setStatusCode(serving ? 200 : 503)
+        .end(serving ? "ready" : draining ? "draining" : "starting");
+    }
 
-    private void deleteTask(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
+    // ======== shutdown ======== //
+    // readiness turns 503 at once and the load balancer is given shutdown.drain_delay_ms to stop
+    // sending. Then event streams are ended and in-flight requests get up to shutdown.timeout_ms
+    // to finish before the server, the bulk client and the pool are closed.
+    @Override
+    public void stop(Promise<Void> stopPromise){
+        draining = true;
+        JsonObject shutdown = config().getJsonObject("shutdown", new JsonObject());
+        long delayMs = shutdown.getLong("drain_delay_ms", 0L);
+        long deadline = System.currentTimeMillis() + delayMs + shutdown.getLong("timeout_ms", 30000L);
+
+        Promise<Void> idle = Promise.promise();
+        vertx.setTimer(Math.max(1, delayMs), t->{
+            events.close();
+            vertx.setPeriodic(1, 20, id->{
+                if(inFlight > 0 && System.currentTimeMillis() < deadline){
+                    return;
+                }
+                vertx.cancelTimer(id);
+                if(inFlight > 0){
+                    LOG.warning("closing with " + inFlight + " requests still in flight");
+                }
+                idle.complete();
+            });
+        });
 
-        String path = context.request().path();
-        String extractedPath = path.replaceFirst("^/task/", "");
+        idle.future()
+        .compose(v -> server == null ? Future.succeededFuture() : server.close())
+        .compose(v->{
+            if(bulkClient != null){
+                bulkClient.close();
+            }
+            return pool.close();
+        })
+        .onComplete(res -> stopPromise.complete());
+    }
 
-        String query = "delete from tasks where id = " + extractedPath +";";
 
-        client.query(query,res->{
+
+    private void deleteTask(RoutingContext context){
+        Long id = pathId(context, "^/task/");
+        if(id == null){
+            return;
+        }
+
+        repository.deleteTask(id).onComplete(res->{
             if(res.succeeded()){
+                TaskGraph.Link gone = taskGraph.get(id);
+                taskGraph.remove(id);
+                tasksChanged(new JsonArray().add(id));
+                if(res.result().rowCount() > 0){
+                    publishEvents(new JsonArray().add(TaskEvents.event("deleted", id, gone == null ? 0 : gone.parentId)));
+                }
                 context.response()
                 .setStatusCode(200)
                 .setStatusMessage("ok")
@@ -94,51 +371,37 @@ public class App extends AbstractVerticle{
             }
         });
     }
-    
-    private void getMaster(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
-
-        String path = context.request().path();
-        String extractedPath = path.replaceFirst("^/master/", ""); 
-        
-        String query = "select * from masterTasks where id = " + extractedPath + ";";
 
-        client.query(query,res->{
+    private void getMaster(RoutingContext context){
+        Long id = pathId(context, "^/master/");
+        if(id == null){
+            return;
+        }
+
+        Buffer cached = masterCache.getMaster(id);
+        if(cached != null){
+            context.response()
+            .setStatusCode(200)
+            .setStatusMessage("ok")
+            .putHeader("Content-Type", "application/json")
+            .end(cached);
+            return;
+        }
+
+        long generation = masterCache.generation();
+        repository.getMaster(id).onComplete(res->{
             if(res.succeeded()){
-                System.out.println("after succeed");
-                // System.out.println();
-
-                JsonArray jsonArray = new JsonArray(res.result().getRows().toString());
-                // System.out.println(jsonArray);
-               
-                for(int i=0;i<jsonArray.size();i++){
-                    //======== output =======//
-                    // JsonObject jsonObject = jsonArray.getJsonObject(i);
-                    String outputFormatString = jsonArray.getJsonObject(i).getString("output_format");
-                    JsonObject outputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("output_format",outputFormat);
-
-                    //======== input =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("input_format");
-                    JsonObject inputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("input_format",inputFormat);
-
-
-                    //======== eta =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("eta");
-                    JsonObject etaFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("eta",etaFormat);
+                Buffer body = RowMapper.toJsonArray(res.result());
+                // unknown ids are not cached, the row may be inserted later
+                if(res.result().size() > 0){
+                    masterCache.putMaster(id, body, generation);
                 }
 
-
-                // JsonArray cleanedArray = JsonCleaner.cleanJsonArray(jsonArray);
-
-
                 context.response()
                 .setStatusCode(200)
                 .setStatusMessage("ok")
-                .end(jsonArray.toString());
+                .putHeader("Content-Type", "application/json")
+                .end(body);
             }else{
                 context.response()
                 .setStatusCode(500)
@@ -146,314 +409,964 @@ public class App extends AbstractVerticle{
             }
         });
     }
-    
+
     private void getChildTasks(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
+        Long parentId = pathId(context, "^/master/task/");
+        if(parentId == null){
+            return;
+        }
+
+        TaskQuery query = taskQuery(context, true);
+        if(query == null){
+            return;
+        }
+
+        // ?limit=&after_id= gives one keyset page, otherwise all children are streamed
+        if(context.request().getParam("limit") != null){
+            pageRows(context, (afterId, limit) -> repository.pageChildTasks(parentId, query, afterId, limit));
+        }else{
+            streamRows(context, consumer -> repository.streamChildTasks(parentId, query, consumer), null);
+        }
+    }
 
-        String path = context.request().path();
-        String extractedPath = path.replaceFirst("^/master/task/", ""); 
-        // System.out.println(extractedPath); 
-        
-        String query = "select * from tasks where parent_id = " + '"' + extractedPath + '"' +";";
+    // tasks across parents, e.g. ?service_id=3&is_active=1&fields=id,name
+    private void getTasks(RoutingContext context){
+        TaskQuery query = taskQuery(context, true);
+        if(query == null){
+            return;
+        }
+
+        if(context.request().getParam("limit") != null){
+            pageRows(context, (afterId, limit) -> repository.pageTasks(query, afterId, limit));
+        }else{
+            streamRows(context, consumer -> repository.streamTasks(query, consumer), null);
+        }
+    }
 
-        client.query(query,res->{
-            if(res.succeeded()){
-                JsonArray jsonArray = new JsonArray(res.result().getRows().toString());
-                // System.out.println(jsonArray);
-               
-                for(int i=0;i<jsonArray.size();i++){
-                    //======== output =======//
-                    // JsonObject jsonObject = jsonArray.getJsonObject(i);
-                    String outputFormatString = jsonArray.getJsonObject(i).getString("output_format");
-                    JsonObject outputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("output_format",outputFormat);
-
-                    //======== input =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("input_format");
-                    JsonObject inputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("input_format",inputFormat);
-
-
-                    //======== eta =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("eta");
-                    JsonObject etaFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("eta",etaFormat);
-                }
+    // ?fields= and the column filters of a listing, null after answering 400
+    private static TaskQuery taskQuery(RoutingContext context, boolean children){
+        try{
+            return TaskQuery.from(context.request().params(), children);
+        }catch(IllegalArgumentException e){
+            context.response()
+            .setStatusCode(400)
+            .end(e.getMessage());
+            return null;
+        }
+    }
 
+    // PUT and PATCH both write only the fields present in the body. With If-Match the write
+    // only happens if the task is still at that version (ETag from GET /task/{id}), else 412.
+    // Without If-Match and with write_behind.enabled the update is buffered and answered 202, see WriteBehind.
+    private void updateTask(RoutingContext context){
+        Long id = pathId(context, "^/task/");
+        if(id == null){
+            return;
+        }
+
+        JsonObject jsonObject = jsonBody(context);
+        if(jsonObject == null){
+            return;
+        }
+        if(!TaskRepository.hasTaskColumns(jsonObject)){
+            context.response()
+            .setStatusCode(400)
+            .end("no task fields to update");
+            return;
+        }
+        if(!formatsCompile(context, jsonObject)){
+            return;
+        }
+
+        String ifMatch = context.request().getHeader("If-Match");
+        Integer expectedVersion = null;
+        if(ifMatch != null && !ifMatch.trim().equals("*")){
+            expectedVersion = versionOf(ifMatch);
+            if(expectedVersion == null){
+                context.response()
+                .setStatusCode(412)
+                .end("If-Match does not name a task version");
+                return;
+            }
+        }
+        Integer expected = expectedVersion;
+
+        // where the task will sit in the dependency graph, null if the write does not move it
+        TaskGraph.Link relinked = relink(id, jsonObject);
+        if(relinked != null && taskGraph.createsCycle(relinked)){
+            context.response()
+            .setStatusCode(409)
+            .end("dependency cycle");
+            return;
+        }
+
+        if(writeBehindStripes > 0 && ifMatch == null){
+            updateBehind(context, id, jsonObject, relinked);
+            return;
+        }
+
+        repository.patchTask(id, jsonObject, expected).onComplete(resp->{
+            if(resp.succeeded()){
+                if(resp.result().rowCount() == 0){
+                    context.response()
+                    .setStatusCode(ifMatch != null ? 412 : 404)
+                    .end(ifMatch != null ? "task was changed or removed" : "task not found");
+                    return;
+                }
+                TaskGraph.Link previous = taskGraph.get(id);
+                if(relinked != null){
+                    taskGraph.put(relinked);
+                }
+                tasksChanged(new JsonArray().add(id));
+                long parentId = relinked != null ? relinked.parentId
+                    : previous != null ? previous.parentId : TaskGraph.longValue(jsonObject.getValue("parent_id"));
+                JsonObject event = TaskEvents.event("updated", id, parentId);
+                if(previous != null && previous.parentId != parentId){
+                    event.put("previous_parent_id", previous.parentId);
+                }
+                publishEvents(new JsonArray().add(event));
+                if(expected != null){
+                    context.response().putHeader("ETag", etag(expected + 1));
+                }
                 context.response()
                 .setStatusCode(200)
                 .setStatusMessage("ok")
-                .end(jsonArray.toString());
+                .end("data updated");
             }else{
                 context.response()
                 .setStatusCode(500)
-                .end("database error ");
+                .end("database error");
             }
         });
     }
-    
-    private void updateTask(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
-
-        context.request().bodyHandler(res->{
-            String cntRcvd = res.toString();
-            String path = context.request().path();
-            String extractedPath = path.replaceFirst("^/task/", "");
-
-            JsonObject jsonObject = new JsonObject(cntRcvd);
-
-            String query = "update tasks set "+
-                           "name = " + "'" + jsonObject.getString("name")+ "',"+
-                           "slug = " + "'" +jsonObject.getString("slug")+ "'," +
-                           "description =" + "'" +jsonObject.getString("description")+"',"+
-                           "help_text =" + "'" +jsonObject.getString("help_text")+"',"+
-                           "input_format ="+"'" + jsonObject.getJsonObject("input_format") +"',"+
-                           "output_format ="+"'" + jsonObject.getJsonObject("output_format")+"',"+
-                           "dependent_task_slug ="+"'" +jsonObject.getString("dependent_task_slug")+"',"+
-                           "repeats_on ="+jsonObject.getString("repeats_on")+","+
-                           "bulk_input ="+jsonObject.getString("bulk_input")+","+
-                           "input_http_method ="+jsonObject.getString("input_http_method")+","+
-                           "api_endpoint ="+"'" +jsonObject.getString("api_endpoint")+"',"+
-                           "api_timeout_in_ms ="+jsonObject.getString("api_timeout_in_ms")+","+
-                           "response_type ="+jsonObject.getString("response_type")+","+
-                           "is_json_input_needed ="+jsonObject.getString("is_json_input_needed")+","+
-                           "task_type ="+jsonObject.getString("task_type")+","+
-                           "is_active ="+jsonObject.getString("is_active")+","+
-                           "is_optional ="+jsonObject.getString("is_optional")+","+
-                           "eta ="+"'" +jsonObject.getJsonObject("eta")+"'"+","+
-                           "service_id ="+jsonObject.getString("service_id")+","+
-                           "email_list ="+"'" +jsonObject.getString("email_list")+"',"+
-                           "action ="+"'" +jsonObject.getString("action") + "'"+
-                           " where id = " + extractedPath;
-
-            client.query(query,resp->{
-                if(resp.succeeded()){
-                    context.response()
-                    .setStatusCode(200)
-                    .setStatusMessage("ok")
-                    .end("data updated");
-                }else{
-                    context.response()
-                    .setStatusCode(500)
-                    .end("database error");
-                }
-            });
 
-            // context.response().end(query);
+    // the update is in the write-behind journal when this answers 202, the database gets it within write_behind.window_ms
+    private void updateBehind(RoutingContext context, long id, JsonObject changes, TaskGraph.Link relinked){
+        // once answered, a value the database refuses could only be dropped
+        String invalid = TaskRepository.invalidColumn(changes);
+        if(invalid != null){
+            context.response()
+            .setStatusCode(400)
+            .end(invalid);
+            return;
+        }
+        TaskGraph.Link previous = taskGraph.get(id);
+        if(previous == null && taskGraph.isLoaded()){
+            context.response()
+            .setStatusCode(404)
+            .end("task not found");
+            return;
+        }
+        long parentId = relinked != null ? relinked.parentId
+            : previous != null ? previous.parentId : TaskGraph.longValue(changes.getValue("parent_id"));
+        JsonObject event = TaskEvents.event("updated", id, parentId);
+        if(previous != null && previous.parentId != parentId){
+            event.put("previous_parent_id", previous.parentId);
+        }
+
+        JsonObject update = new JsonObject().put("id", id).put("changes", changes).put("event", event);
+        vertx.eventBus().request(WriteBehind.address(id, writeBehindStripes), update).onComplete(res->{
+            if(res.succeeded()){
+                if(relinked != null){
+                    taskGraph.put(relinked);
+                }
+                context.response()
+                .setStatusCode(202)
+                .setStatusMessage("accepted")
+                .end("update accepted");
+            }else if(res.cause() instanceof ReplyException && ((ReplyException) res.cause()).failureCode() == 503){
+                context.response()
+                .setStatusCode(503)
+                .putHeader("Retry-After", "1")
+                .end("too many pending updates");
+            }else{
+                LOG.log(Level.SEVERE, "write-behind of task " + id + " failed", res.cause());
+                context.response()
+                .setStatusCode(500)
+                .end("could not record the update");
+            }
         });
     }
 
     private void postMaster(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
-
-        context.request().bodyHandler(res->{
-            String cntRcvd = res.toString();
-
-            JsonObject jsonObject = new JsonObject(cntRcvd);
-
-
-            String query = "insert into masterTasks ("+
-                                "name,slug,description,help_text,"+
-                                "input_format,output_format,dependent_task_slug,repeats_on,"+
-                                "bulk_input,input_http_method,api_endpoint,api_timeout_in_ms,"+
-                                "response_type,is_json_input_needed,task_type,is_active,is_optional,"+
-                                "eta,service_id,email_list,action)"+"values("+
-                                "'" + jsonObject.getString("name")+ "'"+ ","+
-                                "'" +jsonObject.getString("slug")+ "'"+","+
-                                "'" +jsonObject.getString("description")+"'"+","+
-                                "'" +jsonObject.getString("help_text")+"'"+","+
-                                "'" + jsonObject.getJsonObject("input_format") +"'"+","+
-                                "'" + jsonObject.getJsonObject("output_format")+"'"+","+
-                                "'" +jsonObject.getString("dependent_task_slug")+"'"+","+
-                                jsonObject.getString("repeats_on")+","+
-                                jsonObject.getString("bulk_input")+","+
-                                jsonObject.getString("input_http_method")+","+
-                                "'" +jsonObject.getString("api_endpoint")+"'"+","+
-                                jsonObject.getString("api_timeout_in_ms")+","+
-                                jsonObject.getString("response_type")+","+
-                                jsonObject.getString("is_json_input_needed")+","+
-                                jsonObject.getString("task_type")+","+
-                                jsonObject.getString("is_active")+","+
-                                jsonObject.getString("is_optional")+","+
-                                "'" +jsonObject.getJsonObject("eta")+"'"+","+
-                                jsonObject.getString("service_id")+","+
-                                "'" +jsonObject.getString("email_list")+"'"+","+
-                                "'" +jsonObject.getString("action") + "')" + ";";   
-
-            // System.out.println(query);                    
-            
-            client.query(query,resp->{
-                if(resp.succeeded()){
-                    context.response()
-                    .setStatusCode(200)
-                    .setStatusMessage("ok")
-                    .end("data added");
-                }else{
-                    context.response()
-                    .setStatusCode(500)
-                    .end("Could not add to the database");
+        JsonObject jsonObject = jsonBody(context);
+        if(jsonObject == null){
+            return;
+        }
+        if(!formatsCompile(context, jsonObject)){
+            return;
+        }
+        if(masterGraph.createsCycle(TaskGraph.Link.ofMaster(0, jsonObject))){
+            context.response()
+            .setStatusCode(409)
+            .end("dependency cycle");
+            return;
+        }
+
+        repository.insertMaster(jsonObject).onComplete(resp->{
+            if(resp.succeeded()){
+                Object id = TaskRepository.insertedId(resp.result());
+                if(id != null){
+                    masterGraph.put(TaskGraph.Link.ofMaster(TaskGraph.longValue(id), jsonObject));
+                    publishEvents(new JsonArray().add(TaskEvents.masterEvent("created", TaskGraph.longValue(id))));
                 }
-            });
-        //    JsonObject obj = new JsonObject(jsonObject.getString("output_format"));
-            // System.out.println(obj);
-            // context.response().end(query);
+
+                // clear this instance right away, the others on the event bus
+                masterCache.invalidateAll();
+                vertx.eventBus().publish(MasterCache.INVALIDATE_ADDRESS, null);
+
+                context.response()
+                .setStatusCode(200)
+                .setStatusMessage("ok")
+                .end("data added");
+            }else{
+                context.response()
+                .setStatusCode(500)
+                .end("Could not add to the database");
+            }
         });
     }
 
     private void getTask(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
-
-        String path = context.request().path();
-        String extractedPath = path.replaceFirst("^/task/", ""); 
-        // System.out.println(extractedPath); 
-        
-        String query = "select * from tasks where id = " + '"' + extractedPath + '"' +";";
+        Long id = pathId(context, "^/task/");
+        if(id == null){
+            return;
+        }
+
+        // conditional GET: a version lookup is enough to answer 304 without loading the row
+        String ifNoneMatch = context.request().getHeader("If-None-Match");
+        if(ifNoneMatch == null){
+            loadTask(context, id);
+            return;
+        }
+        repository.getTaskVersion(id).onComplete(res->{
+            if(res.succeeded() && res.result().size() > 0){
+                String etag = etag(res.result().iterator().next().getValue(0));
+                if(matches(ifNoneMatch, etag)){
+                    context.response()
+                    .setStatusCode(304)
+                    .putHeader("ETag", etag)
+                    .end();
+                    return;
+                }
+            }
+            loadTask(context, id);
+        });
+    }
 
-        client.query(query,res->{
+    private void loadTask(RoutingContext context, long id){
+        repository.getTask(id).onComplete(res->{
             if(res.succeeded()){
-                JsonArray jsonArray = new JsonArray(res.result().getRows().toString());
-                // System.out.println(jsonArray);
-               
-                for(int i=0;i<jsonArray.size();i++){
-                    //======== output =======//
-                    // JsonObject jsonObject = jsonArray.getJsonObject(i);
-                    String outputFormatString = jsonArray.getJsonObject(i).getString("output_format");
-                    JsonObject outputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("output_format",outputFormat);
-
-                    //======== input =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("input_format");
-                    JsonObject inputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("input_format",inputFormat);
-
-
-                    //======== eta =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("eta");
-                    JsonObject etaFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("eta",etaFormat);
+                if(res.result().size() > 0){
+                    context.response().putHeader("ETag", etag(res.result().iterator().next().getValue("version")));
                 }
-
                 context.response()
                 .setStatusCode(200)
                 .setStatusMessage("ok")
-                .end(jsonArray.toString());
+                .putHeader("Content-Type", "application/json")
+                .end(RowMapper.toJsonArray(res.result()));
             }else{
                 context.response()
                 .setStatusCode(500)
                 .end("database error ");
             }
         });
-
-        // context.response().end(query);
     }
 
     private void postTask(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
-
-        context.request().bodyHandler(res->{
-            String cntRcvd = res.toString();
-
-            JsonObject jsonObject = new JsonObject(cntRcvd);
-
-            // System.out.println(jsonObject.);
-
-            String query = "insert into tasks ("+
-                                "name,slug,description,help_text,"+
-                                "input_format,output_format,dependent_task_slug,repeats_on,"+
-                                "bulk_input,input_http_method,api_endpoint,api_timeout_in_ms,"+
-                                "response_type,is_json_input_needed,task_type,is_active,is_optional,"+
-                                "eta,service_id,email_list,action,parent_id)"+"values("+
-                                "'" + jsonObject.getString("name")+ "'"+ ","+
-                                "'" +jsonObject.getString("slug")+ "'"+","+
-                                "'" +jsonObject.getString("description")+"'"+","+
-                                "'" +jsonObject.getString("help_text")+"'"+","+
-                                "'" + jsonObject.getJsonObject("input_format") +"'"+","+
-                                "'" + jsonObject.getJsonObject("output_format")+"'"+","+
-                                "'" +jsonObject.getString("dependent_task_slug")+"'"+","+
-                                jsonObject.getString("repeats_on")+","+
-                                jsonObject.getString("bulk_input")+","+
-                                jsonObject.getString("input_http_method")+","+
-                                "'" +jsonObject.getString("api_endpoint")+"'"+","+
-                                jsonObject.getString("api_timeout_in_ms")+","+
-                                jsonObject.getString("response_type")+","+
-                                jsonObject.getString("is_json_input_needed")+","+
-                                jsonObject.getString("task_type")+","+
-                                jsonObject.getString("is_active")+","+
-                                jsonObject.getString("is_optional")+","+
-                                "'" +jsonObject.getJsonObject("eta")+"'"+","+
-                                jsonObject.getString("service_id")+","+
-                                "'" +jsonObject.getString("email_list")+"'"+","+
-                                "'" +jsonObject.getString("action")+ "'" + ","
-                                +jsonObject.getString("parent_id") + ");";   
-
-            // System.out.println(query);                    
-            
-            client.query(query,resp->{
-                if(resp.succeeded()){
-                    context.response()
-                    .setStatusCode(200)
-                    .setStatusMessage("ok")
-                    .end("data added");
-                }else{
+        JsonObject jsonObject = jsonBody(context);
+        if(jsonObject == null){
+            return;
+        }
+        if(!formatsCompile(context, jsonObject)){
+            return;
+        }
+        if(taskGraph.createsCycle(TaskGraph.Link.of(0, jsonObject))){
+            context.response()
+            .setStatusCode(409)
+            .end("dependency cycle");
+            return;
+        }
+
+        repository.insertTask(jsonObject).onComplete(resp->{
+            if(resp.succeeded()){
+                Object id = TaskRepository.insertedId(resp.result());
+                if(id != null){
+                    TaskGraph.Link link = TaskGraph.Link.of(TaskGraph.longValue(id), jsonObject);
+                    taskGraph.put(link);
+                    tasksChanged(new JsonArray().add(id));
+                    publishEvents(new JsonArray().add(TaskEvents.event("created", link.id, link.parentId)));
+                }
+
+                context.response()
+                .setStatusCode(200)
+                .setStatusMessage("ok")
+                .end("data added");
+            }else{
+                context.response()
+                .setStatusCode(500)
+                .end("Could not add to the database");
+            }
+        });
+    }
+
+    private void postTaskBatch(RoutingContext context){
+        insertTasks(context, null);
+    }
+
+    private void instantiateMaster(RoutingContext context){
+        Long id = paramId(context, "id");
+        if(id == null){
+            return;
+        }
+
+        // hold the body until the template is loaded
+        context.request().pause();
+
+        repository.getMaster(id).onComplete(res->{
+            if(res.failed()){
+                context.response()
+                .setStatusCode(500)
+                .end("database error");
+                return;
+            }
+            if(res.result().size() == 0){
+                context.response()
+                .setStatusCode(404)
+                .end("master not found");
+                return;
+            }
+
+            // every item starts from the template's columns and belongs to the master
+            JsonObject template = res.result().iterator().next().toJson();
+            template.remove("id");
+            template.put("parent_id", id);
+
+            insertTasks(context, template);
+        });
+    }
+
+    // ======== bulk input ======== //
+    // records come from the request body, or with ?input=name from a file staged in bulk.input_dir;
+    // ?batch_size= and ?parallelism= override the configured defaults
+    private void postBulkInput(RoutingContext context){
+        Long id = paramId(context, "id");
+        if(id == null){
+            return;
+        }
+        HttpServerRequest request = context.request();
+
+        int batchSize;
+        int parallelism;
+        try{
+            String size = request.getParam("batch_size");
+            String parallel = request.getParam("parallelism");
+            batchSize = size == null ? bulkConfig.getInteger("batch_size", 100) : Integer.parseInt(size);
+            parallelism = parallel == null ? bulkConfig.getInteger("parallelism", 4) : Integer.parseInt(parallel);
+        }catch(NumberFormatException e){
+            batchSize = -1;
+            parallelism = -1;
+        }
+        int maxParallelism = bulkConfig.getInteger("max_parallelism", 64);
+        if(batchSize < 1 || batchSize > MAX_BATCH_SIZE || parallelism < 1 || parallelism > maxParallelism){
+            context.response()
+            .setStatusCode(400)
+            .end("batch_size must be between 1 and " + MAX_BATCH_SIZE + ", parallelism between 1 and " + maxParallelism);
+            return;
+        }
+
+        String inputName = request.getParam("input");
+        Path inputDir = Paths.get(bulkConfig.getString("input_dir", "bulk/in")).toAbsolutePath().normalize();
+        Path inputFile = inputName == null ? null : inputDir.resolve(inputName).normalize();
+        if(inputFile != null && !inputFile.startsWith(inputDir)){
+            context.response()
+            .setStatusCode(400)
+            .end("input must name a file in the bulk input directory");
+            return;
+        }
+        String contentType = request.getHeader("Content-Type");
+        boolean csv = inputFile != null ? inputFile.toString().endsWith(".csv") : contentType != null && contentType.contains("csv");
+
+        // hold the body until the task is loaded
+        request.pause();
+        int size = batchSize;
+        int parallel = parallelism;
+
+        repository.getTask(id).onComplete(res->{
+            if(res.failed()){
+                context.response()
+                .setStatusCode(500)
+                .end("database error");
+                return;
+            }
+            if(res.result().size() == 0){
+                context.response()
+                .setStatusCode(404)
+                .end("task not found");
+                return;
+            }
+            JsonObject task = res.result().iterator().next().toJson();
+            if(TaskGraph.longValue(task.getValue("bulk_input")) == 0 || task.getString("api_endpoint") == null){
+                context.response()
+                .setStatusCode(409)
+                .end("task does not take bulk input");
+                return;
+            }
+
+            ValidatorCache.Formats formats;
+            try{
+                formats = validators.task(id, task);
+            }catch(IllegalArgumentException e){
+                context.response()
+                .setStatusCode(409)
+                .end("task has a broken " + e.getMessage());
+                return;
+            }
+            String outputDir = bulkConfig.getString("output_dir", "bulk/out");
+            String outputFile = outputDir + "/task-" + id + "-" + System.currentTimeMillis() + ".ndjson";
+
+            Future<ReadStream<Buffer>> input = inputFile == null
+                ? Future.succeededFuture(request)
+                : vertx.fileSystem().open(inputFile.toString(), new OpenOptions().setRead(true).setWrite(false).setCreate(false))
+                    .map(file -> file.setReadBufferSize(64 * 1024));
+
+            input.onComplete(opened->{
+                if(opened.failed()){
                     context.response()
-                    .setStatusCode(500)
-                    .end("Could not add to the database");
+                    .setStatusCode(404)
+                    .end("input file not found");
+                    return;
                 }
+                if(inputFile != null){
+                    request.resume();
+                }
+
+                vertx.fileSystem().mkdirs(outputDir)
+                .compose(v -> vertx.fileSystem().open(outputFile, new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true)))
+                .compose(output -> new BulkPipeline(bulkClient(), task, formats, output, size, parallel, bulkConfig.getInteger("max_record_bytes", 1048576)).run(opened.result(), csv))
+                .onComplete(done->{
+                    if(inputFile != null){
+                        ((AsyncFile) opened.result()).close();
+                    }
+                    if(done.succeeded()){
+                        LOG.info("bulk input for task " + id + ": " + done.result().encode());
+                        context.response()
+                        .setStatusCode(200)
+                        .setStatusMessage("ok")
+                        .putHeader("Content-Type", "application/json")
+                        .end(done.result().put("task_id", id).put("output", outputFile).toBuffer());
+                    }else{
+                        LOG.log(Level.WARNING, "bulk input for task " + id + " failed", done.cause());
+                        context.response()
+                        .setStatusCode(500)
+                        .end("bulk input failed");
+                    }
+                });
             });
-        //    JsonObject obj = new JsonObject(jsonObject.getString("output_format"));
-            // System.out.println(obj);
-            // context.response().end(query);
         });
     }
 
-    private void getMasters(RoutingContext context){
-        HttpMethod method = context.request().method();
-        System.out.println("HTTP method is "+ method);
+    // ======== payload validation ======== //
+    // answers from the compiled formats, the row is only read when they are not cached yet
+    private void validateTaskPayload(RoutingContext context){
+        Long id = paramId(context, "id");
+        if(id == null){
+            return;
+        }
+        validatePayload(context, validators.getTask(id), () -> repository.getTask(id), row -> validators.task(id, row));
+    }
+
+    private void validateMasterPayload(RoutingContext context){
+        Long id = paramId(context, "id");
+        if(id == null){
+            return;
+        }
+        validatePayload(context, validators.getMaster(id), () -> repository.getMaster(id), row -> validators.master(id, row));
+    }
+
+    private void validatePayload(RoutingContext context, ValidatorCache.Formats cached, Supplier<Future<RowSet<Row>>> load, Function<JsonObject, ValidatorCache.Formats> compile){
+        boolean output = "output".equals(context.request().getParam("format"));
+
+        Future<ValidatorCache.Formats> formats = cached != null
+            ? Future.succeededFuture(cached)
+            : load.get().map(rows -> rows.size() == 0 ? null : compile.apply(rows.iterator().next().toJson()));
+
+        formats.onComplete(res->{
+            if(res.failed()){
+                context.response()
+                .setStatusCode(res.cause() instanceof IllegalArgumentException ? 409 : 500)
+                .end(res.cause() instanceof IllegalArgumentException ? "broken " + res.cause().getMessage() : "database error");
+                return;
+            }
+            if(res.result() == null){
+                context.response()
+                .setStatusCode(404)
+                .end("not found");
+                return;
+            }
+            SchemaValidator validator = output ? res.result().output : res.result().input;
+            Object payload;
+            try{
+                payload = context.body().isEmpty() ? null : Json.decodeValue(context.body().buffer());
+            }catch(DecodeException e){
+                payload = null;
+            }
+            String error = payload == null ? "not JSON" : validator.validate(payload);
+            context.response()
+            .setStatusCode(error == null ? 200 : 422)
+            .putHeader("Content-Type", "application/json")
+            .end(new JsonObject().put("valid", error == null).put("error", error).toBuffer());
+        });
+    }
 
-        String path = context.request().path();
+    // the body read by the BodyHandler, decoded straight from its bytes. Anything but a JSON
+    // object is answered with 400 and gives null.
+    private static JsonObject jsonBody(RoutingContext context){
+        JsonObject body = null;
+        try{
+            body = context.body().asJsonObject();
+        }catch(DecodeException | ClassCastException e){
+            // not JSON, or JSON that is not an object
+        }
+        if(body == null){
+            context.response()
+            .setStatusCode(400)
+            .end("body must be a JSON object");
+        }
+        return body;
+    }
 
-        String query = "select * from masterTasks;";
+    // formats in a write are compiled up front, so a broken one is refused instead of failing every later run
+    private static boolean formatsCompile(RoutingContext context, JsonObject body){
+        try{
+            ValidatorCache.Formats.of(body);
+            return true;
+        }catch(IllegalArgumentException e){
+            context.response()
+            .setStatusCode(400)
+            .end(e.getMessage());
+            return false;
+        }
+    }
 
-        client.query(query,res->{
+    // created on first use, most instances never send bulk input
+    private WebClient bulkClient(){
+        if(bulkClient == null){
+            bulkClient = WebClient.create(vertx);
+        }
+        return bulkClient;
+    }
+
+    // ======== bulk insert ======== //
+    // the body is a JSON array of up to http.max_batch_body_bytes, or one task per line with an ndjson
+    // content type, which is read as it arrives with lines of up to http.max_body_bytes; larger ones get 413
+    private void insertTasks(RoutingContext context, JsonObject template){
+        HttpServerRequest request = context.request();
+        String contentType = request.getHeader("Content-Type");
+        boolean ndjson = contentType != null && contentType.contains("ndjson");
+        long contentLength;
+        try{
+            contentLength = Long.parseLong(request.getHeader("Content-Length"));
+        }catch(NumberFormatException e){
+            contentLength = -1;   // none, or chunked
+        }
+        if(!ndjson && contentLength > maxBatchBodyBytes){
+            context.response()
+            .setStatusCode(413)
+            .end("body is larger than " + maxBatchBodyBytes + " bytes");
+            return;
+        }
+
+        int batchSize;
+        try{
+            String param = request.getParam("batch_size");
+            batchSize = param == null ? insertBatchSize : Integer.parseInt(param);
+        }catch(NumberFormatException e){
+            batchSize = -1;
+        }
+        if(batchSize < 1 || batchSize > MAX_BATCH_SIZE){
+            context.response()
+            .setStatusCode(400)
+            .end("batch_size must be between 1 and " + MAX_BATCH_SIZE);
+            return;
+        }
+
+        TaskBatchWriter writer = new TaskBatchWriter(pool, batchSize, template, taskGraph);
+        request.pause();
+
+        writer.begin().onComplete(begun->{
+            if(begun.failed()){
+                writer.rollback();
+                context.response()
+                .setStatusCode(500)
+                .end("database error");
+                return;
+            }
+
+            if(ndjson){
+                RecordParser lines = RecordParser.newDelimited("\n", request).maxRecordSize((int) Math.min(maxBodyBytes, Integer.MAX_VALUE));
+                boolean[] failed = {false};
+
+                lines.exceptionHandler(err->{
+                    if(failed[0]){
+                        return;
+                    }
+                    failed[0] = true;
+                    writer.rollback();
+                    if(err instanceof IllegalStateException){
+                        // a line longer than maxRecordSize, the rest is not read
+                        context.response()
+                        .setStatusCode(413)
+                        .putHeader("Connection", "close")
+                        .end("a line is longer than " + maxBodyBytes + " bytes");
+                    }else{
+                        context.response()
+                        .setStatusCode(400)
+                        .end("could not read the body");
+                    }
+                });
+
+                lines.handler(line->{
+                    if(failed[0] || line.toString().isBlank()){
+                        return;
+                    }
+                    Object item;
+                    try{
+                        item = Json.decodeValue(line);
+                    }catch(DecodeException e){
+                        writer.reject("invalid JSON");
+                        return;
+                    }
+                    Future<Void> added = writer.add(item);
+                    if(!added.isComplete()){
+                        // a batch is being written, stop reading until it is done
+                        lines.pause();
+                        added.onComplete(ar->{
+                            if(ar.succeeded()){
+                                lines.resume();
+                            }else{
+                                failed[0] = true;
+                                writer.rollback();
+                                context.response()
+                                .setStatusCode(500)
+                                .end("Could not add to the database");
+                            }
+                        });
+                    }
+                });
+                lines.endHandler(v->{
+                    if(!failed[0]){
+                        commitTasks(context, writer);
+                    }
+                });
+            }else{
+                // bodyHandler would buffer whatever the client sends, this stops at the limit
+                Buffer body = Buffer.buffer();
+                boolean[] tooLarge = {false};
+                request.handler(chunk->{
+                    if(tooLarge[0]){
+                        return;
+                    }
+                    if(body.length() + chunk.length() > maxBatchBodyBytes){
+                        tooLarge[0] = true;
+                        writer.rollback();
+                        context.response()
+                        .setStatusCode(413)
+                        .putHeader("Connection", "close")
+                        .end("body is larger than " + maxBatchBodyBytes + " bytes");
+                        return;
+                    }
+                    body.appendBuffer(chunk);
+                });
+                request.endHandler(v->{
+                    if(tooLarge[0]){
+                        return;
+                    }
+                    JsonArray items;
+                    try{
+                        items = body.toJsonArray();
+                    }catch(DecodeException e){
+                        writer.rollback();
+                        context.response()
+                        .setStatusCode(400)
+                        .end("body must be a JSON array or NDJSON");
+                        return;
+                    }
+                    addAll(writer, items, 0).onComplete(res->{
+                        if(res.succeeded()){
+                            commitTasks(context, writer);
+                        }else{
+                            writer.rollback();
+                            context.response()
+                            .setStatusCode(500)
+                            .end("Could not add to the database");
+                        }
+                    });
+                });
+            }
+            request.resume();
+        });
+    }
+
+    // adds items in order, continuing asynchronously only when an add had to wait for a batch write
+    private static Future<Void> addAll(TaskBatchWriter writer, JsonArray items, int from){
+        for(int i=from;i<items.size();i++){
+            Future<Void> added = writer.add(items.getValue(i));
+            if(!added.isComplete() || added.failed()){
+                int next = i + 1;
+                return added.compose(v -> addAll(writer, items, next));
+            }
+        }
+        return Future.succeededFuture();
+    }
+
+    private void commitTasks(RoutingContext context, TaskBatchWriter writer){
+        writer.commit().onComplete(res->{
             if(res.succeeded()){
-                System.out.println("after succeed");
-                // System.out.println();
-
-                JsonArray jsonArray = new JsonArray(res.result().getRows().toString());
-                // System.out.println(jsonArray);
-               
-                for(int i=0;i<jsonArray.size();i++){
-                    //======== output =======//
-                    // JsonObject jsonObject = jsonArray.getJsonObject(i);
-                    String outputFormatString = jsonArray.getJsonObject(i).getString("output_format");
-                    JsonObject outputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("output_format",outputFormat);
-
-                    //======== input =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("input_format");
-                    JsonObject inputFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("input_format",inputFormat);
-
-
-                    //======== eta =======//
-                    outputFormatString = jsonArray.getJsonObject(i).getString("eta");
-                    JsonObject etaFormat = new JsonObject(outputFormatString);
-                    jsonArray.getJsonObject(i).put("eta",etaFormat);
+                JsonArray ids = new JsonArray();
+                JsonArray created = new JsonArray();
+                for(int i=0;i<res.result().size();i++){
+                    Object id = res.result().getJsonObject(i).getValue("id");
+                    if(id != null){
+                        ids.add(id);
+                        // the writer has put the new rows in the graph, which knows their parents
+                        TaskGraph.Link link = taskGraph.get(TaskGraph.longValue(id));
+                        created.add(TaskEvents.event("created", TaskGraph.longValue(id), link == null ? 0 : link.parentId));
+                    }
                 }
+                tasksChanged(ids);
+                publishEvents(created);
 
+                context.response()
+                .setStatusCode(200)
+                .setStatusMessage("ok")
+                .putHeader("Content-Type", "application/json")
+                .end(res.result().toBuffer());
+            }else{
+                context.response()
+                .setStatusCode(500)
+                .end("Could not add to the database");
+            }
+        });
+    }
 
-                // JsonArray cleanedArray = JsonCleaner.cleanJsonArray(jsonArray);
+    private void getMasters(RoutingContext context){
+        TaskQuery query = taskQuery(context, false);
+        if(query == null){
+            return;
+        }
+
+        // ?limit=&after_id= gives one keyset page, otherwise the whole table is streamed
+        if(context.request().getParam("limit") != null){
+            pageRows(context, (afterId, limit) -> repository.pageMasters(query, afterId, limit));
+        }else if(!query.isAll()){
+            // only the full list is cached
+            streamRows(context, consumer -> repository.streamMasters(query, consumer), null);
+        }else{
+            Buffer cached = masterCache.getList();
+            if(cached != null){
+                context.response()
+                .setStatusCode(200)
+                .setStatusMessage("ok")
+                .putHeader("Content-Type", "application/json")
+                .end(cached);
+                return;
+            }
+            long generation = masterCache.generation();
+            streamRows(context, consumer -> repository.streamMasters(query, consumer), body -> masterCache.putList(body, generation));
+        }
+    }
 
+    // this instance forgets the tasks' validators right away, the others and the scheduler on the event bus
+    private void tasksChanged(JsonArray ids){
+        if(!ids.isEmpty()){
+            invalidateTasks(ids);
+            vertx.eventBus().publish(TASKS_CHANGED_ADDRESS, ids);
+        }
+    }
+
+    private void invalidateTasks(JsonArray ids){
+        for(int i=0;i<ids.size();i++){
+            validators.invalidateTask(ids.getLong(i));
+        }
+    }
+
+    // ======== change events ======== //
+    // every instance passes them on to its own subscribers, see TaskEvents
+    private void publishEvents(JsonArray changes){
+        if(!changes.isEmpty()){
+            vertx.eventBus().publish(TaskEvents.ADDRESS, changes);
+        }
+    }
+
+    private void getEvents(RoutingContext context){
+        String param = context.request().getParam("parent_id");
+        LongOpenHashSet parents = null;
+        if(param != null){
+            parents = new LongOpenHashSet();
+            try{
+                for(String id : param.split(",")){
+                    parents.add(Long.parseLong(id.trim()));
+                }
+            }catch(NumberFormatException e){
+                context.response()
+                .setStatusCode(400)
+                .end("parent_id must be a list of ids");
+                return;
+            }
+        }
+        events.subscribe(context.response(), parents);
+    }
+
+    // ======== dependency graph ======== //
+    private void getMasterDag(RoutingContext context){
+        sendOrder(context, masterGraph, 0);
+    }
 
+    private void getTaskDag(RoutingContext context){
+        Long parentId = paramId(context, "parent");
+        if(parentId == null){
+            return;
+        }
+        sendOrder(context, taskGraph, parentId);
+    }
+
+    private void getReadyTasks(RoutingContext context){
+        Long parentId = paramId(context, "parent");
+        if(parentId == null){
+            return;
+        }
+        if(!taskGraph.isLoaded()){
+            context.response()
+            .setStatusCode(503)
+            .end("dependency index is loading");
+            return;
+        }
+
+        LongOpenHashSet completed = new LongOpenHashSet();
+        String param = context.request().getParam("completed");
+        if(param != null && !param.isBlank()){
+            try{
+                for(String id : param.split(",")){
+                    completed.add(Long.parseLong(id.trim()));
+                }
+            }catch(NumberFormatException e){
                 context.response()
+                .setStatusCode(400)
+                .end("completed must be task ids");
+                return;
+            }
+        }
+
+        context.response()
+        .setStatusCode(200)
+        .setStatusMessage("ok")
+        .putHeader("Content-Type", "application/json")
+        .end(taskGraph.ready(parentId, completed).toBuffer());
+    }
+
+    private void sendOrder(RoutingContext context, TaskGraph graph, long parentId){
+        if(!graph.isLoaded()){
+            context.response()
+            .setStatusCode(503)
+            .end("dependency index is loading");
+            return;
+        }
+        JsonObject order = graph.order(parentId);
+        context.response()
+        .setStatusCode(order.containsKey("cycle") ? 409 : 200)
+        .putHeader("Content-Type", "application/json")
+        .end(order.toBuffer());
+    }
+
+    // the task as it will be after the update, when the update changes its place in the graph
+    private TaskGraph.Link relink(long id, JsonObject changes){
+        if(!TaskGraph.Link.touches(changes)){
+            return null;
+        }
+        TaskGraph.Link current = taskGraph.get(id);
+        return current == null ? null : current.with(changes);
+    }
+
+    // the shared index called `name`, or a new one loaded from `source` if this instance is the first
+    private TaskGraph sharedGraph(String name, Function<TaskRepository.RowConsumer, Future<Void>> source, Function<Row, TaskGraph.Link> link){
+        LocalMap<String, TaskGraph> graphs = vertx.sharedData().getLocalMap(TaskGraph.MAP_NAME);
+        TaskGraph created = new TaskGraph();
+        TaskGraph existing = graphs.putIfAbsent(name, created);
+        if(existing != null){
+            return existing;
+        }
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if(registry != null){
+            registry.gauge("dependency_index_rows", Tags.of("graph", name), created, TaskGraph::size);
+        }
+
+        source.apply(stream->{
+            Promise<Void> done = Promise.promise();
+            stream.exceptionHandler(done::tryFail);
+            stream.endHandler(v -> done.tryComplete());
+            stream.handler(row -> created.load(link.apply(row)));
+            return done.future();
+        }).onComplete(res->{
+            if(res.succeeded()){
+                created.markLoaded();
+                LOG.info("dependency index " + name + " loaded with " + created.size() + " rows");
+            }else{
+                LOG.log(Level.SEVERE, "could not load dependency index " + name, res.cause());
+                created.loadFailed(res.cause());
+            }
+        });
+        return created;
+    }
+
+    private void getCacheStats(RoutingContext context){
+        context.response()
+        .setStatusCode(200)
+        .putHeader("Content-Type", "application/json")
+        .end(masterCache.stats().toBuffer());
+    }
+
+    // ======== keyset pagination ======== //
+    // `query` receives the cursor (last id already sent) and the page size
+    private void pageRows(RoutingContext context, BiFunction<Long, Integer, Future<RowSet<Row>>> query){
+        long afterId;
+        int limit;
+        try{
+            String after = context.request().getParam("after_id");
+            afterId = after == null ? 0 : Long.parseLong(after);
+            limit = Integer.parseInt(context.request().getParam("limit"));
+        }catch(NumberFormatException e){
+            context.response()
+            .setStatusCode(400)
+            .end("limit and after_id must be numbers");
+            return;
+        }
+        if(limit < 1 || limit > MAX_PAGE_SIZE){
+            context.response()
+            .setStatusCode(400)
+            .end("limit must be between 1 and " + MAX_PAGE_SIZE);
+            return;
+        }
+
+        query.apply(afterId, limit).onComplete(res->{
+            if(res.succeeded()){
+                RowSet<Row> rows = res.result();
+
+                HttpServerResponse response = context.response();
+                // a full page means there may be more, the client continues from the last id
+                if(rows.size() == limit){
+                    Object lastId = null;
+                    for(Row row : rows){
+                        lastId = row.getValue("id");
+                    }
+                    response.putHeader("X-Next-After-Id", String.valueOf(lastId));
+                }
+                response
                 .setStatusCode(200)
                 .setStatusMessage("ok")
-                .end(jsonArray.toString());
+                .putHeader("Content-Type", "application/json")
+                .end(RowMapper.toJsonArray(rows));
             }else{
                 context.response()
                 .setStatusCode(500)
@@ -462,8 +1375,295 @@ public class App extends AbstractVerticle{
         });
     }
 
+    // ======== streaming ======== //
+    // rows are written to a chunked response as the cursor hands them over, so the result set is never held in memory.
+    // When `capture` is set, a complete body no larger than the cache limit is also handed to it.
+    private void streamRows(RoutingContext context, Function<TaskRepository.RowConsumer, Future<Void>> query, Handler<Buffer> capture){
+        HttpServerResponse response = context.response();
+
+        query.apply(stream->{
+            Promise<Void> done = Promise.promise();
+            RowMapper mapper = new RowMapper();
+            Buffer[] chunk = {Buffer.buffer(STREAM_CHUNK_SIZE).appendByte((byte) '[')};
+            boolean[] first = {true};
+            Buffer[] whole = {capture == null ? null : Buffer.buffer()};
+
+            response
+            .setChunked(true)
+            .setStatusCode(200)
+            .setStatusMessage("ok")
+            .putHeader("Content-Type", "application/json");
+
+            // the client went away, stop reading from the database
+            response.closeHandler(v -> stream.close().onComplete(ar -> done.tryComplete()));
+
+            stream.exceptionHandler(done::tryFail);
+
+            stream.endHandler(v->{
+                chunk[0].appendByte((byte) ']');
+                if(keep(whole, chunk[0])){
+                    capture.handle(whole[0]);
+                }
+                response.end(chunk[0]);
+                done.tryComplete();
+            });
+
+            stream.handler(row->{
+                if(!first[0]){
+                    chunk[0].appendByte((byte) ',');
+                }
+                mapper.appendRow(chunk[0], row);
+                first[0] = false;
+                if(chunk[0].length() < STREAM_CHUNK_SIZE){
+                    return;
+                }
+                keep(whole, chunk[0]);
+                response.write(chunk[0]);
+                chunk[0] = Buffer.buffer(STREAM_CHUNK_SIZE);
+
+                // slow client: stop pulling rows until the socket drains
+                if(response.writeQueueFull()){
+                    stream.pause();
+                    response.drainHandler(d -> stream.resume());
+                }
+            });
+
+            return done.future();
+        }).onFailure(err->{
+            if(response.headWritten()){
+                // the status line is already sent, so the only way to signal the failure is to abort the response
+                response.reset();
+            }else{
+                response
+                .setStatusCode(500)
+                .end("database error");
+            }
+        });
+    }
+
+    // copies a streamed chunk into the captured body, giving up once it outgrows the list cache
+    private boolean keep(Buffer[] whole, Buffer chunk){
+        if(whole[0] == null){
+            return false;
+        }
+        if(whole[0].length() + chunk.length() > masterCache.maxListBytes()){
+            whole[0] = null;
+            return false;
+        }
+        whole[0].appendBuffer(chunk);
+        return true;
+    }
+
+    // ======== ETags ======== //
+    // a task's ETag is its row version, which every write through the API bumps
+    private static String etag(Object version){
+        return "\"" + version + "\"";
+    }
+
+    // the version named by an If-Match value, null when it is not one of our ETags
+    private static Integer versionOf(String header){
+        String value = header.trim();
+        if(value.startsWith("W/")){
+            value = value.substring(2);
+        }
+        try{
+            return Integer.parseInt(value.replace("\"", ""));
+        }catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+    private static boolean matches(String header, String etag){
+        for(String candidate : header.split(",")){
+            String value = candidate.trim();
+            if(value.equals("*") || value.equals(etag) || value.equals("W/" + etag)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ids are bound as numbers, anything else in the path is rejected before touching the database
+    private static Long pathId(RoutingContext context, String prefix){
+        String extractedPath = context.request().path().replaceFirst(prefix, "");
+        try{
+            return Long.parseLong(extractedPath);
+        }catch(NumberFormatException e){
+            context.response()
+            .setStatusCode(400)
+            .end("invalid id");
+            return null;
+        }
+    }
+
+    private static Long paramId(RoutingContext context, String name){
+        try{
+            return Long.parseLong(context.pathParam(name));
+        }catch(NumberFormatException e){
+            context.response()
+            .setStatusCode(400)
+            .end("invalid id");
+            return null;
+        }
+    }
+
+    /**
+     * Reads config.json from the classpath, then the file named by APP_CONFIG if set, then
+     * system properties such as -Ddb.password=... or -Dhttp.instances=4, later sources winning.
+     * config.json holds no database credentials, db.user and db.password come from the latter two.
+     */
+    public static Future<JsonObject> loadConfig(Vertx vertx){
+        ConfigRetrieverOptions options = new ConfigRetrieverOptions()
+        .addStore(new ConfigStoreOptions().setType("file").setConfig(new JsonObject().put("path", "config.json")));
+
+        String external = System.getenv("APP_CONFIG");
+        if(external != null){
+            options.addStore(new ConfigStoreOptions().setType("file").setConfig(new JsonObject().put("path", external)));
+        }
+
+        options.addStore(new ConfigStoreOptions().setType("sys").setConfig(new JsonObject().put("hierarchical", true)));
+
+        ConfigRetriever retriever = ConfigRetriever.create(vertx, options);
+        return retriever.getConfig().eventually(() -> {
+            retriever.close();
+            return Future.succeededFuture();
+        });
+    }
+
+    // one instance per core unless http.instances says otherwise, they all share port and pool
+    static int instances(JsonObject config){
+        int instances = config.getJsonObject("http", new JsonObject()).getInteger("instances", 0);
+        return instances > 0 ? instances : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Server options from the http section: gzip/deflate at compression.level for clients that
+     * accept it, HTTP/2 settings for h2c callers (prior knowledge or Upgrade, both always on),
+     * and the tcp socket options. fast_open and quick_ack need the native epoll transport, which
+     * is not a dependency, so they stay off unless it is added.
+     */
+    static HttpServerOptions serverOptions(JsonObject http){
+        JsonObject compression = http.getJsonObject("compression", new JsonObject());
+        JsonObject http2 = http.getJsonObject("http2", new JsonObject());
+        JsonObject tcp = http.getJsonObject("tcp", new JsonObject());
+
+        HttpServerOptions options = new HttpServerOptions()
+        .setCompressionSupported(compression.getBoolean("enabled", true))
+        .setCompressionLevel(compression.getInteger("level", 1))
+        .setInitialSettings(new Http2Settings()
+            .setMaxConcurrentStreams(http2.getLong("max_concurrent_streams", 256L)))
+        .setHttp2ConnectionWindowSize(http2.getInteger("connection_window_bytes", -1))
+        .setTcpNoDelay(tcp.getBoolean("no_delay", true))
+        .setTcpKeepAlive(tcp.getBoolean("keep_alive", true))
+        .setTcpFastOpen(tcp.getBoolean("fast_open", false))
+        .setTcpQuickAck(tcp.getBoolean("quick_ack", false))
+        .setAcceptBacklog(tcp.getInteger("accept_backlog", -1));
+        // 0 leaves the kernel's auto-tuned buffer sizes alone
+        int sendBuffer = tcp.getInteger("send_buffer_bytes", 0);
+        int receiveBuffer = tcp.getInteger("receive_buffer_bytes", 0);
+        if(sendBuffer > 0){
+            options.setSendBufferSize(sendBuffer);
+        }
+        if(receiveBuffer > 0){
+            options.setReceiveBufferSize(receiveBuffer);
+        }
+        return options;
+    }
+
+    /**
+     * Micrometer metrics with a Prometheus registry: per-route HTTP latency histograms and
+     * response sizes, SQL client processing time, and pool wait time, in-use and queue depth.
+     * Disabled with -Dmetrics.enabled=false.
+     */
+    static VertxOptions vertxOptions(){
+        MicrometerMetricsOptions metrics = new MicrometerMetricsOptions()
+        .setEnabled(!"false".equals(System.getProperty("metrics.enabled")))
+        .setPrometheusOptions(new VertxPrometheusOptions()
+            .setEnabled(true)
+            .setPublishQuantiles(true))   // histogram buckets, so p50/p99 can be computed in Prometheus
+        .addLabels(Label.HTTP_ROUTE, Label.HTTP_METHOD, Label.HTTP_CODE, Label.POOL_TYPE, Label.POOL_NAME);
+        return new VertxOptions().setMetricsOptions(metrics).setPreferNativeTransport(true);
+    }
+
     public static void main(String[] args) {
-        Vertx vertx = Vertx.vertx();
-        vertx.deployVerticle(new App());
+        Vertx vertx = Vertx.vertx(vertxOptions());
+        AsyncLogHandler logHandler = AsyncLogHandler.install(Level.INFO);
+        // deployments in start order. On SIGTERM they are undeployed in reverse: the scheduler stops
+        // first, then the App instances drain (see App#stop), then the write-behind stripes they fed
+        // write what they hold. The log handler is closed last, so warnings of the shutdown get out.
+        Deque<String> deployments = new ConcurrentLinkedDeque<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(()->{
+            Future<Void> stopped = Future.succeededFuture();
+            for(Iterator<String> ids = deployments.descendingIterator(); ids.hasNext();){
+                String id = ids.next();
+                stopped = stopped.eventually(() -> vertx.undeploy(id));
+            }
+            try{
+                stopped.eventually(() -> vertx.close()).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            }catch(Exception e){
+                LOG.log(Level.WARNING, "shutdown did not complete", e);
+            }
+            logHandler.close();
+        }));
+        loadConfig(vertx).onComplete(res->{
+            if(res.failed()){
+                LOG.log(Level.SEVERE, "could not load config", res.cause());
+                vertx.close();
+                return;
+            }
+            JsonObject config = res.result();
+            Level level = Level.parse(config.getJsonObject("log", new JsonObject()).getString("level", "INFO"));
+            logHandler.setLevel(level);
+            Logger.getLogger("").setLevel(level);
+
+            MeterRegistry registry = BackendRegistries.getDefaultNow();
+            if(registry != null){
+                registry.gauge("log_dropped_records", logHandler, AsyncLogHandler::dropped);
+            }
+
+            // the credentials are not in config.json, a stand-in database (db.jdbc_url) brings its own
+            JsonObject db = config.getJsonObject("db", new JsonObject());
+            if(!db.containsKey("jdbc_url") && (!db.containsKey("user") || !db.containsKey("password"))){
+                LOG.severe("db.user and db.password are not set; give them in the file named by APP_CONFIG or as -Ddb.user=... -Ddb.password=...");
+                vertx.close();
+                return;
+            }
+
+            // bring the schema up to date before any instance serves requests; a stand-in database
+            // gets the base tables first
+            Future<Void> migrated = Future.succeededFuture();
+            if(db.getBoolean("migrate", true)){
+                Pool migrationPool = TaskRepository.createPool(vertx, db);
+                SchemaMigrator migrator = new SchemaMigrator(vertx, migrationPool);
+                migrated = (db.containsKey("jdbc_url") ? migrator.createSchema() : Future.<Void>succeededFuture())
+                    .compose(v -> migrator.migrate())
+                    .eventually(() -> migrationPool.close());
+            }
+
+            // the scheduler runs next to the App instances, in one process per database, see TaskScheduler#deploy
+            boolean schedule = config.getJsonObject("scheduler", new JsonObject()).getBoolean("enabled", false);
+
+            // a write-behind journal left behind is written first, even with write-behind off, then the stripes are up before the App instances send them updates
+            migrated
+            .compose(v -> WriteBehind.deploy(vertx, config)).onSuccess(deployments::addAll)
+            .compose(v -> vertx.deployVerticle(App::new, new DeploymentOptions().setConfig(config).setInstances(instances(config)))).onSuccess(deployments::add)
+            .compose(v -> schedule ? TaskScheduler.deploy(vertx, config, deployments::add) : Future.succeededFuture())
+            .onSuccess(v->{
+                // from JVM start to every instance serving, see the startupTime task
+                long startupMs = ManagementFactory.getRuntimeMXBean().getUptime();
+                LOG.info("ready in " + startupMs + " ms");
+                if(registry != null){
+                    Gauge.builder("app_startup_seconds", () -> startupMs / 1000.0).strongReference(true).register(registry);
+                }
+                if(Boolean.getBoolean("app.exit_after_start")){
+                    // startup measurements and AppCDS training runs stop here, through the shutdown hook
+                    new Thread(() -> System.exit(0)).start();
+                }
+            })
+            .onFailure(err->{
+                LOG.log(Level.SEVERE, "could not start", err);
+                vertx.close();
+            });
+        });
     }
 }
@@ -0,0 +1,112 @@
+package backend;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * java.util.logging handler that queues records and writes them from a background thread, so
+ * logging never blocks an event loop on stdout.
+ *
+ * The queue is bounded; when it is full new records are dropped and counted rather than
+ * making the caller wait. Records below the configured level are rejected by the loggers
+ * themselves, so disabled log statements cost a level check.
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * LogManager that leaves the handlers open when the JVM shuts down. The JDK's own shutdown
+     * hook resets the LogManager, which closes the handlers while App's hook is still stopping
+     * the verticles and logging about it; App closes its handler at the end of its hook instead.
+     * App makes it the LogManager through the java.util.logging.manager property.
+     */
+    public static final class Manager extends LogManager {
+        @Override
+        public void reset() {
+            // handlers are only ever replaced through install(), the configuration is read once
+        }
+    }
+
+    private final Handler delegate;
+    private final BlockingQueue<LogRecord> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public AsyncLogHandler(Handler delegate, int capacity) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::drain, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Replaces the root handlers with an async console handler and sets the root level. */
+    public static AsyncLogHandler install(Level level) {
+        Logger root = LogManager.getLogManager().getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            root.removeHandler(handler);
+        }
+        ConsoleHandler console = new ConsoleHandler();
+        console.setLevel(Level.ALL);
+        AsyncLogHandler async = new AsyncLogHandler(console, 8192);
+        async.setLevel(level);
+        root.addHandler(async);
+        root.setLevel(level);
+        return async;
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // the caller is inferred lazily from the stack, which must happen on the logging thread
+        record.getSourceClassName();
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Records discarded because the queue was full. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                LogRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    delegate.publish(record);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.flush();
+    }
+
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
@@ -0,0 +1,398 @@
+package backend;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.micrometer.backends.BackendRegistries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pushes a stream of input records through a bulk_input task's api_endpoint.
+ *
+ * Records are read one line at a time, as NDJSON or as CSV with a header line, checked
+ * against the task's input_format and sent as JSON arrays of batchSize records, with at most
+ * `parallelism` batches in flight. Every batch result and every rejected record is appended
+ * to the output file as one NDJSON line; answers not matching output_format are flagged
+ * there. Input is paused while all batch slots are taken or the output file is behind, and a
+ * line longer than maxRecordBytes is rejected without being held, so memory stays at about
+ * parallelism * batchSize records no matter how large the input is.
+ *
+ * One pipeline per input, used from the event loop that created it.
+ */
+public class BulkPipeline {
+
+    private final WebClient client;
+    private final AsyncFile output;
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxRecordBytes;
+
+    private final String url;
+    private final HttpMethod method;
+    private final long timeoutMs;
+    private final SchemaValidator input;
+    private final SchemaValidator resultFormat;
+
+    private final Promise<JsonObject> done = Promise.promise();
+    private RecordParser parser;
+    private boolean csv;
+    private List<String> header;
+    // the rest of a line that was too long is dropped as it comes in, see tooLong
+    private boolean skipping;
+    private boolean discarding;
+
+    private JsonArray batch = new JsonArray();
+    private long batchFrom;
+    private int inFlight;
+    private boolean ended;
+    private boolean paused;
+
+    private long lines;
+    private long invalid;
+    private long batches;
+    private long sent;
+    private long failed;
+    private long failedBatches;
+    private long invalidResults;
+    private long startedAt;
+
+    /**
+     * @param task the task row: api_endpoint, input_http_method and api_timeout_in_ms are used
+     * @param formats the task's compiled input_format and output_format
+     * @param output file the results are written to, closed when the run ends
+     * @param maxRecordBytes longest input line that is read, longer ones are rejected
+     */
+    public BulkPipeline(WebClient client, JsonObject task, ValidatorCache.Formats formats, AsyncFile output, int batchSize, int parallelism, int maxRecordBytes) {
+        this.client = client;
+        this.output = output;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.maxRecordBytes = maxRecordBytes;
+        this.url = task.getString("api_endpoint");
+        // batches are request bodies, so a GET or DELETE task is called with POST
+        HttpMethod method = TaskScheduler.method(task.getValue("input_http_method"), HttpMethod.POST);
+        this.method = method == HttpMethod.PUT || method == HttpMethod.PATCH ? method : HttpMethod.POST;
+        Object timeout = task.getValue("api_timeout_in_ms");
+        this.timeoutMs = timeout instanceof Number && ((Number) timeout).longValue() > 0 ? ((Number) timeout).longValue() : 30000;
+        this.input = formats.input;
+        this.resultFormat = formats.output;
+    }
+
+    /** Reads `input`, which may be paused, to the end; the future completes with the counts once every batch has been answered. */
+    public Future<JsonObject> run(ReadStream<Buffer> input, boolean csv) {
+        this.csv = csv;
+        startedAt = System.currentTimeMillis();
+
+        output.exceptionHandler(this::fail);
+        parser = RecordParser.newDelimited("\n", input).maxRecordSize(maxRecordBytes);
+        parser.exceptionHandler(err -> {
+            if (err instanceof IllegalStateException) {
+                tooLong();
+            } else {
+                fail(err);
+            }
+        });
+        parser.endHandler(v -> {
+            ended = true;
+            send();
+            finishIfDone();
+        });
+        parser.handler(this::line);
+        // the caller may have paused the input while it looked the task up
+        parser.resume();
+        return done.future();
+    }
+
+    // ======== reading ======== //
+
+    private void line(Buffer buffer) {
+        if (skipping) {
+            if (discarding) {
+                // a piece of the long line, the rest of it up to its line break comes next
+                discarding = false;
+                parser.delimitedMode("\n");
+            } else {
+                skipping = false;
+            }
+            return;
+        }
+        if (buffer.length() > maxRecordBytes) {
+            reject(lines++, "record is longer than " + maxRecordBytes + " bytes");
+            return;
+        }
+        String line = buffer.toString();
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (line.isBlank()) {
+            return;
+        }
+        if (csv && header == null) {
+            header = csvFields(line);
+            return;
+        }
+        long index = lines++;
+
+        JsonObject record;
+        try {
+            record = csv ? csvRecord(line) : decode(line);
+        } catch (DecodeException | IllegalArgumentException e) {
+            reject(index, e.getMessage());
+            return;
+        }
+        String error = input.validate(record);
+        if (error != null) {
+            reject(index, error);
+            return;
+        }
+
+        if (batch.isEmpty()) {
+            batchFrom = index;
+        }
+        batch.add(record);
+        if (batch.size() >= batchSize) {
+            send();
+        }
+    }
+
+    // the parser holds more than maxRecordBytes of a line without its end: the record is rejected
+    // and what the parser holds of it is let out as one fixed-size piece that line() drops.
+    // While paused the parser also holds whole lines it has not handed out, so it is not a long line.
+    private void tooLong() {
+        if (paused) {
+            return;
+        }
+        if (!skipping) {
+            skipping = true;
+            reject(lines++, "record is longer than " + maxRecordBytes + " bytes");
+        }
+        discarding = true;
+        parser.fixedSizeMode(maxRecordBytes);
+    }
+
+    private static JsonObject decode(String line) {
+        Object value = Json.decodeValue(line);
+        if (!(value instanceof JsonObject)) {
+            throw new IllegalArgumentException("not a JSON object");
+        }
+        return (JsonObject) value;
+    }
+
+    // CSV values are text, converted to the type input_format asks for
+    private JsonObject csvRecord(String line) {
+        List<String> values = csvFields(line);
+        if (values.size() != header.size()) {
+            throw new IllegalArgumentException("expected " + header.size() + " fields, got " + values.size());
+        }
+        JsonObject record = new JsonObject();
+        for (int i = 0; i < header.size(); i++) {
+            String name = header.get(i);
+            String type = input.type(name);
+            record.put(name, convert(values.get(i), type));
+        }
+        return record;
+    }
+
+    private static Object convert(String value, String type) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            if ("number".equals(type)) {
+                return value.contains(".") || value.contains("e") || value.contains("E") ? Double.parseDouble(value) : Long.parseLong(value);
+            }
+            if ("integer".equals(type)) {
+                return Long.parseLong(value);
+            }
+        } catch (NumberFormatException e) {
+            return value;   // left as text, so validation names the field
+        }
+        if ("boolean".equals(type) && (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))) {
+            return Boolean.parseBoolean(value);
+        }
+        return value;
+    }
+
+    // one line of RFC 4180 CSV: fields may be quoted, "" inside quotes is a quote. Quoted line breaks are not supported.
+    static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    // ======== sending ======== //
+
+    private void send() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        JsonArray records = batch;
+        long from = batchFrom;
+        long number = batches++;
+        batch = new JsonArray();
+        inFlight++;
+        throttle();
+
+        Future<HttpResponse<Buffer>> response;
+        try {
+            response = client.requestAbs(method, url).timeout(timeoutMs).sendJson(records);
+        } catch (RuntimeException e) {
+            response = Future.failedFuture(e);
+        }
+        response.onComplete(res -> {
+            inFlight--;
+            Integer status = res.succeeded() ? res.result().statusCode() : null;
+            boolean ok = status != null && status >= 200 && status < 300;
+            if (ok) {
+                sent += records.size();
+            } else {
+                failed += records.size();
+                failedBatches++;
+            }
+            Object body = res.succeeded() ? body(res.result()) : null;
+            String resultError = ok ? checkResult(body) : null;
+            if (resultError != null) {
+                invalidResults++;
+            }
+            write(new JsonObject()
+                .put("batch", number)
+                .put("from", from)
+                .put("count", records.size())
+                .put("status", status)
+                .put("error", res.succeeded() ? null : String.valueOf(res.cause().getMessage()))
+                .put("output_format_error", resultError)
+                .put("body", body));
+            throttle();
+            finishIfDone();
+        });
+    }
+
+    // a JSON answer is kept as JSON, anything else as text
+    private static Object body(HttpResponse<Buffer> response) {
+        Buffer body = response.body();
+        if (body == null || body.length() == 0) {
+            return null;
+        }
+        try {
+            return Json.decodeValue(body);
+        } catch (DecodeException e) {
+            return body.toString();
+        }
+    }
+
+    // an answer is one result object or an array of them, each checked against output_format
+    private String checkResult(Object body) {
+        if (resultFormat == SchemaValidator.ANY) {
+            return null;
+        }
+        if (body instanceof JsonArray) {
+            JsonArray results = (JsonArray) body;
+            for (int i = 0; i < results.size(); i++) {
+                String error = resultFormat.validate(results.getValue(i));
+                if (error != null) {
+                    return "[" + i + "] " + error;
+                }
+            }
+            return null;
+        }
+        return resultFormat.validate(body);
+    }
+
+    // ======== output and backpressure ======== //
+
+    private void reject(long index, String reason) {
+        invalid++;
+        write(new JsonObject().put("record", index).put("error", reason));
+    }
+
+    private void write(JsonObject line) {
+        if (done.future().isComplete()) {
+            return;   // failed and closed, answers still coming in are dropped
+        }
+        output.write(line.toBuffer().appendByte((byte) '\n'));
+        throttle();
+    }
+
+    // input flows only while a batch slot is free and the output file keeps up; the drain handler
+    // is set whenever the output is behind, also when a full set of batches paused the input first
+    private void throttle() {
+        boolean behind = output.writeQueueFull();
+        if (behind) {
+            output.drainHandler(v -> throttle());
+        }
+        boolean full = inFlight >= parallelism || behind;
+        if (full && !paused && !ended) {
+            paused = true;
+            parser.pause();
+        } else if (!full && paused) {
+            paused = false;
+            parser.resume();
+        }
+    }
+
+    private void finishIfDone() {
+        if (!ended || inFlight > 0 || done.future().isComplete()) {
+            return;
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+        JsonObject summary = new JsonObject()
+            .put("records", lines)
+            .put("invalid", invalid)
+            .put("batches", batches)
+            .put("sent", sent)
+            .put("failed", failed)
+            .put("failed_batches", failedBatches)
+            .put("invalid_results", invalidResults)
+            .put("elapsed_ms", elapsed)
+            .put("records_per_second", lines * 1000 / elapsed);
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry != null) {
+            registry.counter("bulk_records", "outcome", "sent").increment(sent);
+            registry.counter("bulk_records", "outcome", "failed").increment(failed);
+            registry.counter("bulk_records", "outcome", "invalid").increment(invalid);
+        }
+        output.close().onComplete(v -> done.tryComplete(summary));
+    }
+
+    private void fail(Throwable err) {
+        if (done.tryFail(err)) {
+            output.close();
+        }
+    }
+}
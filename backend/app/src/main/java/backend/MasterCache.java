@@ -0,0 +1,104 @@
+package backend;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of master task templates, holding the serialized response bodies so a
+ * hit is written to the socket as-is.
+ *
+ * Entries are dropped on postMaster. Every App instance keeps its own cache, so writes are
+ * announced on {@link #INVALIDATE_ADDRESS} and each instance clears itself. A generation
+ * number guards against a read that started before the write putting a stale body back.
+ */
+public class MasterCache {
+
+    /** Event bus address on which a master write is published. */
+    public static final String INVALIDATE_ADDRESS = "masters.cache.invalidate";
+
+    private static final String LIST_KEY = "all";
+
+    private final Cache<Long, Buffer> byId;
+    private final Cache<String, Buffer> list;
+    private final int maxListBytes;
+
+    private volatile long generation;
+
+    public MasterCache(JsonObject config) {
+        long ttl = config.getLong("ttl_seconds", 60L);
+        byId = CacheBuilder.newBuilder()
+            .maximumWeight(config.getLong("max_bytes", 16L * 1024 * 1024))
+            .weigher((Long id, Buffer body) -> body.length())
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+        list = CacheBuilder.newBuilder()
+            .maximumSize(1)
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+        maxListBytes = config.getInteger("max_list_bytes", 8 * 1024 * 1024);
+    }
+
+    /** Snapshot taken before going to the database and handed back to the put methods. */
+    public long generation() {
+        return generation;
+    }
+
+    public Buffer getMaster(long id) {
+        return byId.getIfPresent(id);
+    }
+
+    public void putMaster(long id, Buffer body, long readGeneration) {
+        if (readGeneration == generation) {
+            byId.put(id, body);
+        }
+    }
+
+    public Buffer getList() {
+        return list.getIfPresent(LIST_KEY);
+    }
+
+    /** Largest full list that is kept, bigger tables are always streamed from the database. */
+    public int maxListBytes() {
+        return maxListBytes;
+    }
+
+    public void putList(Buffer body, long readGeneration) {
+        if (readGeneration == generation && body.length() <= maxListBytes) {
+            list.put(LIST_KEY, body);
+        }
+    }
+
+    public void invalidateAll() {
+        generation++;
+        byId.invalidateAll();
+        list.invalidateAll();
+    }
+
+    /** Publishes hit/miss/eviction/size meters for both caches, tagged with the App instance. */
+    public void bindTo(MeterRegistry registry, String instance) {
+        GuavaCacheMetrics.monitor(registry, byId, "masters_by_id", "instance", instance);
+        GuavaCacheMetrics.monitor(registry, list, "masters_list", "instance", instance);
+    }
+
+    public JsonObject stats() {
+        return new JsonObject()
+            .put("by_id", toJson(byId.stats()).put("size", byId.size()))
+            .put("list", toJson(list.stats()).put("size", list.size()));
+    }
+
+    private static JsonObject toJson(CacheStats stats) {
+        return new JsonObject()
+            .put("hits", stats.hitCount())
+            .put("misses", stats.missCount())
+            .put("evictions", stats.evictionCount());
+    }
+}
@@ -0,0 +1,149 @@
+package backend;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Row;
+
+import java.util.Base64;
+
+/**
+ * Writes masterTasks / tasks rows as JSON straight from the result columns.
+ *
+ * output_format, input_format and eta hold JSON text that was produced by the API itself, so
+ * they are copied into the response as raw fragments instead of being parsed and re-encoded.
+ * Only objects and arrays are copied that way; a plain string the API stored as it came, such
+ * as an eta of "2h", is written as a JSON string.
+ * One mapper is used per result set: the encoded column names are computed on the first row
+ * and reused for the rest.
+ */
+public class RowMapper {
+
+    private static final String[] JSON_COLUMNS = {"output_format", "input_format", "eta"};
+
+    private String[] keys;
+    private boolean[] rawJson;
+
+    /** Encodes a whole result as a JSON array. */
+    public static Buffer toJsonArray(Iterable<Row> rows) {
+        RowMapper mapper = new RowMapper();
+        Buffer buffer = Buffer.buffer(256).appendByte((byte) '[');
+        boolean first = true;
+        for (Row row : rows) {
+            if (!first) {
+                buffer.appendByte((byte) ',');
+            }
+            mapper.appendRow(buffer, row);
+            first = false;
+        }
+        return buffer.appendByte((byte) ']');
+    }
+
+    /** Appends one row as a JSON object. */
+    public Buffer appendRow(Buffer buffer, Row row) {
+        if (keys == null) {
+            describe(row);
+        }
+        buffer.appendByte((byte) '{');
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                buffer.appendByte((byte) ',');
+            }
+            buffer.appendString(keys[i]);
+            Object value = row.getValue(i);
+            if (rawJson[i] && value instanceof String) {
+                appendRawJson(buffer, (String) value);
+            } else {
+                appendValue(buffer, value);
+            }
+        }
+        return buffer.appendByte((byte) '}');
+    }
+
+    private void describe(Row row) {
+        int size = row.size();
+        keys = new String[size];
+        rawJson = new boolean[size];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            String name = row.getColumnName(i);
+            key.setLength(0);
+            appendQuoted(key, name);
+            keys[i] = key.append(':').toString();
+            for (String column : JSON_COLUMNS) {
+                rawJson[i] |= column.equals(name);
+            }
+        }
+    }
+
+    // an empty column would leave the document malformed, it is reported as null instead
+    private static void appendRawJson(Buffer buffer, String json) {
+        String text = json.strip();
+        if (text.isEmpty()) {
+            buffer.appendString("null");
+        } else if (text.charAt(0) == '{' || text.charAt(0) == '[' || text.equals("null")) {
+            buffer.appendString(json);
+        } else {
+            appendString(buffer, json);
+        }
+    }
+
+    // same conversions as Row#toJson: numbers and booleans as-is, binary as base64, everything else as its string form
+    private static void appendValue(Buffer buffer, Object value) {
+        if (value == null) {
+            buffer.appendString("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            buffer.appendString(value.toString());
+        } else if (value instanceof JsonObject || value instanceof JsonArray) {
+            buffer.appendString(Json.encode(value));
+        } else if (value instanceof Buffer) {
+            appendString(buffer, Base64.getEncoder().encodeToString(((Buffer) value).getBytes()));
+        } else {
+            appendString(buffer, value.toString());
+        }
+    }
+
+    private static void appendString(Buffer buffer, String value) {
+        if (needsEscaping(value)) {
+            StringBuilder escaped = new StringBuilder(value.length() + 16);
+            appendQuoted(escaped, value);
+            buffer.appendString(escaped.toString());
+        } else {
+            buffer.appendByte((byte) '"').appendString(value).appendByte((byte) '"');
+        }
+    }
+
+    private static boolean needsEscaping(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\b': sb.append("\\b"); break;
+                case '\f': sb.append("\\f"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,128 @@
+package backend;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.sqlclient.DatabaseException;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * Applies the SQL scripts under db/migration in order and records each one in schema_version,
+ * so a database is only ever moved forward once per script. Scripts that have shipped must
+ * not be edited; add a new one instead.
+ *
+ * Processes starting together against MySQL take turns through the lock MIGRATION_LOCK
+ * (GET_LOCK, held on a connection of the pool while the others run the scripts). A script
+ * whose DDL went through before its schema_version row was written, e.g. in a crash, is run
+ * again; a table, column or index that already exists then counts as created.
+ */
+public class SchemaMigrator {
+
+    private static final Logger LOG = Logger.getLogger(SchemaMigrator.class.getName());
+
+    static final String MIGRATION_LOCK = "task-schema-migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 120;
+
+    // in order, the version of a script is its position + 1
+    static final String[] MIGRATIONS = {
+        "V1__task_version.sql",
+        "V2__task_runs.sql",
+        "V3__listing_indexes.sql",
+        "V4__task_type_indexes.sql"
+    };
+
+    private final Vertx vertx;
+    private final Pool pool;
+
+    public SchemaMigrator(Vertx vertx, Pool pool) {
+        this.vertx = vertx;
+        this.pool = pool;
+    }
+
+    /** Creates the base tables from db/schema.sql if they do not exist (tests and stand-in databases). */
+    public Future<Void> createSchema() {
+        return runScript("db/schema.sql", false);
+    }
+
+    public Future<Void> migrate() {
+        if (pool instanceof JDBCPool) {
+            // a stand-in database, used by one process
+            return migrateLocked();
+        }
+        return TaskRepository.lock(pool, MIGRATION_LOCK, LOCK_TIMEOUT_SECONDS).compose(conn -> {
+            if (conn == null) {
+                return Future.failedFuture(new IllegalStateException("another process has been migrating the schema for " + LOCK_TIMEOUT_SECONDS + " s"));
+            }
+            return migrateLocked().eventually(() -> conn.close());
+        });
+    }
+
+    // the versions are read under the lock, so scripts another process has applied meanwhile are skipped
+    private Future<Void> migrateLocked() {
+        return pool.query("create table if not exists schema_version (version int not null primary key)").execute()
+            .compose(v -> pool.query("select max(version) from schema_version").execute())
+            .compose(rows -> {
+                Row row = rows.iterator().next();
+                int current = row.getValue(0) == null ? 0 : ((Number) row.getValue(0)).intValue();
+                Future<Void> chain = Future.succeededFuture();
+                for (int version = current + 1; version <= MIGRATIONS.length; version++) {
+                    int next = version;
+                    chain = chain.compose(v -> apply(next));
+                }
+                return chain;
+            });
+    }
+
+    private Future<Void> apply(int version) {
+        String script = MIGRATIONS[version - 1];
+        LOG.info("applying migration " + script);
+        return runScript("db/migration/" + script, true)
+            .compose(v -> pool.preparedQuery("insert into schema_version (version) values (?)").execute(Tuple.of(version)))
+            .mapEmpty();
+    }
+
+    // statements are separated by ';', lines starting with -- are comments
+    private Future<Void> runScript(String resource, boolean rerun) {
+        return vertx.fileSystem().readFile(resource).compose(file -> {
+            Future<Void> chain = Future.succeededFuture();
+            for (String statement : file.toString().split(";")) {
+                String sql = statement.replaceAll("(?m)^--.*$", "").trim();
+                if (!sql.isEmpty()) {
+                    chain = chain.compose(v -> pool.query(sql).execute().<Void>mapEmpty().recover(err -> {
+                        if (rerun && alreadyDone(err)) {
+                            LOG.info("already applied: " + sql);
+                            return Future.succeededFuture();
+                        }
+                        return Future.failedFuture(err);
+                    }));
+                }
+            }
+            return chain;
+        });
+    }
+
+    // the table (42S01), index (42S11) or column (42S21) exists; MySQL reports a duplicate index as 1061 in 42000
+    static boolean alreadyDone(Throwable err) {
+        for (Throwable cause = err; cause != null; cause = cause.getCause()) {
+            String state = null;
+            if (cause instanceof DatabaseException) {
+                int code = ((DatabaseException) cause).getErrorCode();
+                if (code == 1050 || code == 1060 || code == 1061) {
+                    return true;
+                }
+                state = ((DatabaseException) cause).getSqlState();
+            } else if (cause instanceof SQLException) {
+                state = ((SQLException) cause).getSQLState();
+            }
+            if ("42S01".equals(state) || "42S11".equals(state) || "42S21".equals(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
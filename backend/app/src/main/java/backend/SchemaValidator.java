@@ -0,0 +1,244 @@
+package backend;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A task's input_format or output_format compiled into a tree of checks, so a payload is
+ * validated without looking at the format again.
+ *
+ * Two ways of writing a format are understood:
+ * <ul>
+ *   <li>shorthand: an object naming each required field and its type, "string", "number",
+ *   "integer", "boolean", "object" or "array" (other names accept anything). A nested object
+ *   is the format of an object field and a one-element array the format of every element,
+ *   e.g. {"id": "integer", "tags": ["string"], "to": {"email": "string"}}.</li>
+ *   <li>the JSON Schema subset of type, properties, required (a list on the object, or true
+ *   on the property as in draft 3) and items, e.g.
+ *   {"type": "object", "properties": {"id": {"type": "integer"}}, "required": ["id"]}.</li>
+ * </ul>
+ * An object whose keys are all JSON Schema keywords is read as JSON Schema, anything else as
+ * shorthand. Fields a format does not name are allowed.
+ */
+public final class SchemaValidator {
+
+    // null when the value passes, else what is wrong with it: " must be x", or ".field ..." / "[i] ..." for a part of it
+    private interface Check {
+        String test(Object value);
+    }
+
+    /** Accepts every object, for rows without a format. */
+    public static final SchemaValidator ANY = new SchemaValidator(value -> value instanceof JsonObject ? null : " must be object", Map.of());
+
+    private static final Set<String> KEYWORDS = Set.of(
+        "type", "properties", "required", "items", "additionalProperties",
+        "$schema", "$id", "title", "description", "format", "default", "examples");
+
+    private static final Check STRING = value -> value instanceof String ? null : " must be string";
+    private static final Check NUMBER = value -> value instanceof Number ? null : " must be number";
+    private static final Check INTEGER = value -> value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte || value instanceof BigInteger ? null : " must be integer";
+    private static final Check BOOLEAN = value -> value instanceof Boolean ? null : " must be boolean";
+    private static final Check OBJECT = value -> value instanceof JsonObject ? null : " must be object";
+    private static final Check ARRAY = value -> value instanceof JsonArray ? null : " must be array";
+    private static final Check ANY_VALUE = value -> null;
+
+    private final Check root;
+    // type names of the top-level fields, for converting text input such as CSV
+    private final Map<String, String> fieldTypes;
+
+    private SchemaValidator(Check root, Map<String, String> fieldTypes) {
+        this.root = root;
+        this.fieldTypes = fieldTypes;
+    }
+
+    /**
+     * Compiles a stored format, given as a JSON object or its text. A missing or blank format
+     * gives {@link #ANY}.
+     *
+     * @throws io.vertx.core.json.DecodeException if the text is not JSON
+     * @throws IllegalArgumentException if the JSON is not a format
+     */
+    public static SchemaValidator compile(Object format) {
+        // older rows hold the text "null" for no format
+        if (format == null || format instanceof String && (((String) format).isBlank() || ((String) format).trim().equals("null"))) {
+            return ANY;
+        }
+        if (format instanceof String) {
+            format = new JsonObject((String) format);
+        }
+        if (!(format instanceof JsonObject)) {
+            throw new IllegalArgumentException("a format must be a JSON object");
+        }
+        JsonObject object = (JsonObject) format;
+        Map<String, String> fieldTypes = new HashMap<>();
+        if (isSchema(object)) {
+            JsonObject properties = object.getJsonObject("properties", new JsonObject());
+            for (String field : properties.fieldNames()) {
+                Object type = properties.getValue(field) instanceof JsonObject ? properties.getJsonObject(field).getValue("type") : null;
+                if (type instanceof String) {
+                    fieldTypes.put(field, (String) type);
+                }
+            }
+        } else {
+            for (Map.Entry<String, Object> field : object) {
+                if (field.getValue() instanceof String) {
+                    fieldTypes.put(field.getKey(), (String) field.getValue());
+                }
+            }
+        }
+        return new SchemaValidator(check(object), fieldTypes);
+    }
+
+    private static boolean isSchema(JsonObject object) {
+        return object.containsKey("type") && KEYWORDS.containsAll(object.fieldNames());
+    }
+
+    // ======== shorthand ======== //
+
+    private static Check check(Object spec) {
+        if (spec instanceof JsonObject) {
+            JsonObject object = (JsonObject) spec;
+            if (isSchema(object)) {
+                return schema(object);
+            }
+            String[] names = object.fieldNames().toArray(new String[0]);
+            boolean[] required = new boolean[names.length];
+            Check[] checks = new Check[names.length];
+            for (int i = 0; i < names.length; i++) {
+                required[i] = true;
+                checks[i] = check(object.getValue(names[i]));
+            }
+            return fields(names, required, checks);
+        }
+        if (spec instanceof JsonArray) {
+            JsonArray array = (JsonArray) spec;
+            if (array.size() > 1) {
+                throw new IllegalArgumentException("an array format takes one element format");
+            }
+            return array.isEmpty() ? ARRAY : elements(check(array.getValue(0)));
+        }
+        return typeCheck(String.valueOf(spec));
+    }
+
+    // ======== JSON Schema ======== //
+
+    private static Check schema(JsonObject schema) {
+        Object type = schema.getValue("type");
+        if ("object".equals(type) && schema.containsKey("properties")) {
+            JsonObject properties = schema.getJsonObject("properties");
+            JsonArray requiredList = schema.getJsonArray("required", new JsonArray());
+            String[] names = properties.fieldNames().toArray(new String[0]);
+            boolean[] required = new boolean[names.length];
+            Check[] checks = new Check[names.length];
+            for (int i = 0; i < names.length; i++) {
+                Object property = properties.getValue(names[i]);
+                if (!(property instanceof JsonObject)) {
+                    throw new IllegalArgumentException("property " + names[i] + " must be a schema object");
+                }
+                required[i] = requiredList.contains(names[i]) || Boolean.TRUE.equals(((JsonObject) property).getValue("required"));
+                checks[i] = schema((JsonObject) property);
+            }
+            return fields(names, required, checks);
+        }
+        if ("array".equals(type) && schema.getValue("items") instanceof JsonObject) {
+            return elements(schema(schema.getJsonObject("items")));
+        }
+        if (type instanceof JsonArray) {
+            // any of several types, e.g. ["string", "number"]
+            JsonArray types = (JsonArray) type;
+            Check[] any = new Check[types.size()];
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < any.length; i++) {
+                any[i] = typeCheck(String.valueOf(types.getValue(i)));
+                names.append(i == 0 ? "" : " or ").append(types.getValue(i));
+            }
+            String error = " must be " + names;
+            return value -> {
+                for (Check check : any) {
+                    if (check.test(value) == null) {
+                        return null;
+                    }
+                }
+                return error;
+            };
+        }
+        return typeCheck(String.valueOf(type));
+    }
+
+    // ======== checks ======== //
+
+    private static Check typeCheck(String name) {
+        switch (name) {
+            case "string": return STRING;
+            case "number": return NUMBER;
+            case "integer": return INTEGER;
+            case "boolean": return BOOLEAN;
+            case "object": return OBJECT;
+            case "array": return ARRAY;
+            default: return ANY_VALUE;
+        }
+    }
+
+    private static Check fields(String[] names, boolean[] required, Check[] checks) {
+        return value -> {
+            if (!(value instanceof JsonObject)) {
+                return " must be object";
+            }
+            JsonObject object = (JsonObject) value;
+            for (int i = 0; i < names.length; i++) {
+                Object field = object.getValue(names[i]);
+                if (field == null) {
+                    if (required[i]) {
+                        return "." + names[i] + " is missing";
+                    }
+                    continue;
+                }
+                String error = checks[i].test(field);
+                if (error != null) {
+                    return "." + names[i] + error;
+                }
+            }
+            return null;
+        };
+    }
+
+    private static Check elements(Check element) {
+        return value -> {
+            if (!(value instanceof JsonArray)) {
+                return " must be array";
+            }
+            JsonArray values = (JsonArray) value;
+            for (int i = 0; i < values.size(); i++) {
+                Object item = values.getValue(i);
+                String error = item == null ? " is missing" : element.test(item);
+                if (error != null) {
+                    return "[" + i + "]" + error;
+                }
+            }
+            return null;
+        };
+    }
+
+    /** Null when `value` is an object matching the format, else the first problem found. */
+    public String validate(Object value) {
+        if (!(value instanceof JsonObject)) {
+            return "not a JSON object";
+        }
+        String error = root.test(value);
+        if (error == null) {
+            return null;
+        }
+        return error.startsWith(".") ? error.substring(1) : error.trim();
+    }
+
+    /** The type name of a top-level field, null when the format has none or describes it by example. */
+    public String type(String field) {
+        return fieldTypes.get(field);
+    }
+}
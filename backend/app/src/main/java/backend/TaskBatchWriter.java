@@ -0,0 +1,152 @@
+package backend;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Transaction;
+import io.vertx.sqlclient.Tuple;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Inserts many tasks in one transaction.
+ *
+ * Items are buffered and written batchSize at a time with executeBatch, which the MySQL client
+ * pipelines on a single connection, so a batch costs one round trip and the whole set one
+ * commit. Every item gets a result, either the generated id or the reason it was skipped.
+ * With a graph, an item that would close a dependency cycle, with the tasks already indexed
+ * or those ahead of it in the batch, is skipped with status 409.
+ * Not thread safe, items must be added from the event loop that created the writer.
+ */
+public class TaskBatchWriter {
+
+    private static final String INSERT_TASK = TaskRepository.insert("tasks", TaskRepository.CHILD_TASK_COLUMNS);
+
+    private final Pool pool;
+    private final int batchSize;
+    private final JsonObject template;
+    private final TaskGraph graph;
+
+    private final List<Tuple> pending = new ArrayList<>();
+    private final List<Integer> pendingIndexes = new ArrayList<>();
+    private final List<JsonObject> pendingTasks = new ArrayList<>();
+    private final List<TaskGraph.Link> links = new ArrayList<>();
+    // the items taken so far, for the cycle check of the next ones
+    private final List<TaskGraph.Link> added = new ArrayList<>();
+    private final List<JsonObject> results = new ArrayList<>();
+    private int index;
+
+    private SqlConnection connection;
+    private Transaction transaction;
+
+    /**
+     * @param template column values every item starts from (e.g. a master template), may be null
+     * @param graph dependency index the inserted tasks are added to once committed, may be null
+     */
+    public TaskBatchWriter(Pool pool, int batchSize, JsonObject template, TaskGraph graph) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.template = template;
+        this.graph = graph;
+    }
+
+    public Future<Void> begin() {
+        return pool.getConnection()
+            .compose(conn -> {
+                connection = conn;
+                return conn.begin();
+            })
+            .map(tx -> {
+                transaction = tx;
+                return null;
+            });
+    }
+
+    /** Queues one item, the future completes once it is buffered or the batch it filled has been written. */
+    public Future<Void> add(Object item) {
+        int position = index++;
+        if (!(item instanceof JsonObject)) {
+            results.add(error(position, "not a JSON object"));
+            return Future.succeededFuture();
+        }
+        JsonObject task = template == null ? (JsonObject) item : template.copy().mergeIn((JsonObject) item);
+        if (graph != null) {
+            // no id yet, 0 is no task's
+            TaskGraph.Link link = TaskGraph.Link.of(0, task);
+            if (graph.createsCycle(link, added)) {
+                results.add(error(position, "dependency cycle").put("status", 409));
+                return Future.succeededFuture();
+            }
+            added.add(link);
+        }
+        pending.add(TaskRepository.values(task, TaskRepository.CHILD_TASK_COLUMNS));
+        pendingIndexes.add(position);
+        pendingTasks.add(task);
+        return pending.size() >= batchSize ? flush() : Future.succeededFuture();
+    }
+
+    /** Records an item that could not be read at all, e.g. a malformed NDJSON line. */
+    public void reject(String reason) {
+        results.add(error(index++, reason));
+    }
+
+    /** Writes what is left, commits, and returns one result per item in input order. */
+    public Future<JsonArray> commit() {
+        return flush()
+            .compose(v -> transaction.commit())
+            .map(v -> {
+                if (graph != null) {
+                    graph.putAll(links);
+                }
+                results.sort(Comparator.comparingInt(result -> result.getInteger("index")));
+                return new JsonArray(new ArrayList<>(results));
+            })
+            .eventually(() -> connection.close());
+    }
+
+    public Future<Void> rollback() {
+        if (connection == null) {
+            return Future.succeededFuture();
+        }
+        Future<Void> rolledBack = transaction == null ? Future.succeededFuture() : transaction.rollback();
+        return rolledBack.eventually(() -> connection.close());
+    }
+
+    private Future<Void> flush() {
+        if (pending.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        List<Tuple> batch = new ArrayList<>(pending);
+        List<Integer> indexes = new ArrayList<>(pendingIndexes);
+        List<JsonObject> tasks = graph == null ? null : new ArrayList<>(pendingTasks);
+        pending.clear();
+        pendingIndexes.clear();
+        pendingTasks.clear();
+
+        return connection.preparedQuery(INSERT_TASK).executeBatch(batch).map(rows -> {
+            // executeBatch chains one result per tuple (JDBC drivers may report fewer)
+            RowSet<Row> result = rows;
+            for (int i = 0; i < indexes.size(); i++) {
+                Object id = result == null ? null : TaskRepository.insertedId(result);
+                results.add(new JsonObject()
+                    .put("index", indexes.get(i))
+                    .put("id", id));
+                if (tasks != null && id != null) {
+                    links.add(TaskGraph.Link.of(TaskGraph.longValue(id), tasks.get(i)));
+                }
+                result = result == null ? null : result.next();
+            }
+            return null;
+        });
+    }
+
+    private static JsonObject error(int position, String reason) {
+        return new JsonObject().put("index", position).put("error", reason);
+    }
+}
@@ -0,0 +1,246 @@
+package backend;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.micrometer.backends.BackendRegistries;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Change events of tasks and master templates, pushed to clients as Server-Sent Events so
+ * they do not have to poll.
+ *
+ * The write routes publish a JSON array of events on {@link #ADDRESS}, one per row:
+ * {"event": "created" | "updated" | "deleted", "type": "task" | "master", "id": 12,
+ * "parent_id": 3}, with parent_id 0 for master templates and previous_parent_id when an update
+ * moved the task. Every App instance consumes them and hands them to its own subscribers,
+ * which pick parents with ?parent_id=, where 0 stands for the master templates; tasks without
+ * a parent only reach subscribers of everything.
+ *
+ * A subscriber's events are held for coalesce_ms and sent together, so a burst of writes to
+ * one row becomes one event. While the client does not read, events keep being merged in;
+ * once max_pending different rows are waiting they are dropped and a single "reset" event is
+ * sent instead, after which the client should reload what it shows.
+ *
+ * One instance per App verticle, used from its event loop only.
+ */
+public class TaskEvents {
+
+    /** Event bus address of the change events, a JSON array per write. */
+    public static final String ADDRESS = "tasks.events";
+
+    private static final Buffer PING = Buffer.buffer(": ping\n\n");
+    private static final Buffer RESET = Buffer.buffer("event: reset\ndata: {}\n\n");
+
+    private final Vertx vertx;
+    private final int maxPending;
+    private final long coalesceMs;
+    private final long heartbeatMs;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final Counter resets;
+    private long heartbeat = -1;
+
+    public TaskEvents(Vertx vertx, JsonObject config) {
+        this.vertx = vertx;
+        this.maxPending = config.getInteger("max_pending", 1000);
+        this.coalesceMs = config.getLong("coalesce_ms", 100L);
+        this.heartbeatMs = config.getLong("heartbeat_ms", 15000L);
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        this.resets = registry == null ? null : registry.counter("events_resets");
+    }
+
+    /** One change event of a task. */
+    public static JsonObject event(String change, long id, long parentId) {
+        return new JsonObject().put("event", change).put("type", "task").put("id", id).put("parent_id", parentId);
+    }
+
+    /** One change event of a master template. */
+    public static JsonObject masterEvent(String change, long id) {
+        return new JsonObject().put("event", change).put("type", "master").put("id", id).put("parent_id", 0L);
+    }
+
+    private static boolean isMaster(JsonObject event) {
+        return "master".equals(event.getString("type"));
+    }
+
+    /** Starts taking events from the bus for this instance's subscribers. */
+    public void start() {
+        vertx.eventBus().<JsonArray>consumer(ADDRESS, msg -> {
+            JsonArray events = msg.body();
+            for (int i = 0; i < events.size(); i++) {
+                JsonObject event = events.getJsonObject(i);
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.offer(event);
+                }
+            }
+        });
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Turns `response` into an event stream of the given parents, all of them when null, until
+     * the client goes away.
+     */
+    public void subscribe(HttpServerResponse response, LongSet parents) {
+        response
+        .setChunked(true)
+        .setStatusCode(200)
+        .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+        .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+        // events are small and must not wait in a compressor
+        .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+        response.write(PING);
+
+        Subscriber subscriber = new Subscriber(response, parents);
+        subscribers.add(subscriber);
+        response.closeHandler(v -> {
+            subscribers.remove(subscriber);
+            subscriber.cancel();
+            if (subscribers.isEmpty() && heartbeat >= 0) {
+                vertx.cancelTimer(heartbeat);
+                heartbeat = -1;
+            }
+        });
+
+        // a comment now and then keeps proxies from closing a quiet stream
+        if (heartbeat < 0) {
+            heartbeat = vertx.setPeriodic(heartbeatMs, id -> {
+                for (Subscriber each : subscribers) {
+                    if (!each.response.writeQueueFull()) {
+                        each.response.write(PING);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Ends every stream, on shutdown; clients reconnect to another instance and reload. */
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.cancel();
+            subscriber.response.end();
+        }
+        subscribers.clear();
+        if (heartbeat >= 0) {
+            vertx.cancelTimer(heartbeat);
+            heartbeat = -1;
+        }
+    }
+
+    private final class Subscriber {
+        private final HttpServerResponse response;
+        private final LongSet parents;
+        // waiting events by row, see key(), in arrival order
+        private final Long2ObjectLinkedOpenHashMap<JsonObject> pending = new Long2ObjectLinkedOpenHashMap<>();
+        private boolean reset;
+        private long timer = -1;
+
+        Subscriber(HttpServerResponse response, LongSet parents) {
+            this.response = response;
+            this.parents = parents;
+        }
+
+        void offer(JsonObject event) {
+            if (!wants(event)) {
+                return;
+            }
+            // rows of masters and tasks share this map, their ids may collide
+            long key = isMaster(event) ? -event.getLong("id") - 1 : event.getLong("id");
+            if (reset) {
+                return;   // the client reloads everything anyway
+            }
+            JsonObject earlier = pending.get(key);
+            if (earlier == null && pending.size() >= maxPending) {
+                // the client is too far behind for single events to be useful
+                pending.clear();
+                reset = true;
+                if (resets != null) {
+                    resets.increment();
+                }
+                schedule();
+                return;
+            }
+            JsonObject merged = merge(earlier, event);
+            if (merged == null) {
+                pending.remove(key);
+            } else {
+                pending.put(key, merged);
+                schedule();
+            }
+        }
+
+        private boolean wants(JsonObject event) {
+            if (parents == null) {
+                return true;
+            }
+            if (isMaster(event)) {
+                return parents.contains(0L);
+            }
+            // 0 picks the masters, not the tasks without a parent
+            long parent = event.getLong("parent_id");
+            Long previous = event.getLong("previous_parent_id");
+            return parent != 0 && parents.contains(parent) || previous != null && previous != 0 && parents.contains((long) previous);
+        }
+
+        // a row created and changed within one window is still new to the client, and gone again is nothing at all
+        private JsonObject merge(JsonObject earlier, JsonObject event) {
+            if (earlier == null || !"created".equals(earlier.getString("event"))) {
+                return event;
+            }
+            if ("deleted".equals(event.getString("event"))) {
+                return null;
+            }
+            return event.copy().put("event", "created");
+        }
+
+        private void schedule() {
+            if (timer < 0) {
+                timer = vertx.setTimer(coalesceMs, id -> {
+                    timer = -1;
+                    flush();
+                });
+            }
+        }
+
+        private void flush() {
+            if (response.writeQueueFull()) {
+                // keep merging until the client has caught up
+                response.drainHandler(v -> flush());
+                return;
+            }
+            if (reset) {
+                reset = false;
+                response.write(RESET);
+                return;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            Buffer out = Buffer.buffer(pending.size() * 64);
+            for (JsonObject event : pending.values()) {
+                out.appendString("event: ").appendString(event.getString("event"))
+                    .appendString("\ndata: ").appendBuffer(event.toBuffer()).appendString("\n\n");
+            }
+            pending.clear();
+            response.write(out);
+        }
+
+        void cancel() {
+            if (timer >= 0) {
+                vertx.cancelTimer(timer);
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package backend;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * In-memory index of task dependencies, so a parent's whole graph can be answered without
+ * a query per task.
+ *
+ * A task depends on at most one other task, named by dependent_task_slug and looked up among
+ * the tasks of the same parent (the lowest id wins when a slug is used twice). Per task only
+ * the parent, an interned slug number and an interned dependency number are kept, in
+ * primitive-keyed maps, so the index stays small with millions of rows.
+ *
+ * One index is shared by all App instances of a Vert.x instance through a local map, so all
+ * methods are synchronized. It is built from the database once and then kept current by the
+ * write routes.
+ */
+public class TaskGraph implements Shareable {
+
+    /** Local map holding the shared indexes, one for tasks and one for master templates. */
+    public static final String MAP_NAME = "task.graph";
+
+    private static final int NONE = -1;
+
+    /** The dependency columns of one row; id is 0 for a row that is not written yet. */
+    public static final class Link {
+        final long id;
+        final long parentId;
+        final String slug;
+        final String dependsOn;
+
+        Link(long id, long parentId, String slug, String dependsOn) {
+            this.id = id;
+            this.parentId = parentId;
+            this.slug = blankToNull(slug);
+            this.dependsOn = blankToNull(dependsOn);
+        }
+
+        static Link of(long id, JsonObject row) {
+            return new Link(id, longValue(row.getValue("parent_id")), stringValue(row.getValue("slug")),
+                stringValue(row.getValue("dependent_task_slug")));
+        }
+
+        static Link ofMaster(long id, JsonObject row) {
+            return new Link(id, 0, stringValue(row.getValue("slug")), stringValue(row.getValue("dependent_task_slug")));
+        }
+
+        /** This row after an update that writes only the columns present in `changes`. */
+        Link with(JsonObject changes) {
+            return new Link(id,
+                changes.containsKey("parent_id") ? longValue(changes.getValue("parent_id")) : parentId,
+                changes.containsKey("slug") ? stringValue(changes.getValue("slug")) : slug,
+                changes.containsKey("dependent_task_slug") ? stringValue(changes.getValue("dependent_task_slug")) : dependsOn);
+        }
+
+        static boolean touches(JsonObject changes) {
+            return changes.containsKey("parent_id") || changes.containsKey("slug") || changes.containsKey("dependent_task_slug");
+        }
+    }
+
+    // slugs are interned once and referred to by number
+    private final Object2IntOpenHashMap<String> slugIds = new Object2IntOpenHashMap<>();
+    private final ObjectArrayList<String> slugs = new ObjectArrayList<>();
+
+    private final Long2LongOpenHashMap parentOf = new Long2LongOpenHashMap();
+    private final Long2IntOpenHashMap slugOf = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap dependsOn = new Long2IntOpenHashMap();
+    private final Long2ObjectOpenHashMap<LongArrayList> children = new Long2ObjectOpenHashMap<>();
+
+    // rows deleted while the initial load is running, so the load does not bring them back
+    private final LongOpenHashSet removedWhileLoading = new LongOpenHashSet();
+    private boolean loaded;
+    // completes with the initial load, for App instances that wait for it before serving
+    private final CompletableFuture<Void> whenLoaded = new CompletableFuture<>();
+
+    public TaskGraph() {
+        slugIds.defaultReturnValue(NONE);
+        slugOf.defaultReturnValue(NONE);
+        dependsOn.defaultReturnValue(NONE);
+    }
+
+    // ======== loading ======== //
+
+    /** Adds a row read by the initial load, unless a write route already indexed or removed it. */
+    public synchronized void load(Link link) {
+        if (!parentOf.containsKey(link.id) && !removedWhileLoading.contains(link.id)) {
+            add(link);
+        }
+    }
+
+    public synchronized void markLoaded() {
+        loaded = true;
+        removedWhileLoading.clear();
+        removedWhileLoading.trim();
+        whenLoaded.complete(null);
+    }
+
+    public void loadFailed(Throwable cause) {
+        whenLoaded.completeExceptionally(cause);
+    }
+
+    /** Completes once the initial load is done, or fails with it. */
+    public CompletionStage<Void> whenLoaded() {
+        return whenLoaded;
+    }
+
+    /** Until the initial load is done answers would be incomplete, so callers report 503. */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized int size() {
+        return parentOf.size();
+    }
+
+    // ======== writes ======== //
+
+    public synchronized void put(Link link) {
+        detach(link.id);
+        add(link);
+    }
+
+    public synchronized void putAll(List<Link> links) {
+        for (Link link : links) {
+            detach(link.id);
+            add(link);
+        }
+    }
+
+    public synchronized void remove(long id) {
+        detach(id);
+        if (!loaded) {
+            removedWhileLoading.add(id);
+        }
+    }
+
+    /** The indexed row, null when the id is unknown. */
+    public synchronized Link get(long id) {
+        if (!parentOf.containsKey(id)) {
+            return null;
+        }
+        return new Link(id, parentOf.get(id), slugName(slugOf.get(id)), slugName(dependsOn.get(id)));
+    }
+
+    // ======== queries ======== //
+
+    /**
+     * True when writing `link` would make it wait on itself, directly or through the tasks it
+     * depends on. The chain is followed among the other tasks of the same parent.
+     */
+    public synchronized boolean createsCycle(Link link) {
+        if (link.slug == null || link.dependsOn == null) {
+            return false;
+        }
+        int self = slugIds.getInt(link.slug);
+        int next = slugIds.getInt(link.dependsOn);
+        if (self == NONE || next == NONE) {
+            return link.slug.equals(link.dependsOn);
+        }
+
+        Int2IntOpenHashMap dependsOnBySlug = dependenciesBySlug(link.parentId, link.id);
+        // each step moves to another task, so a longer chain is a cycle that does not pass through `link`
+        for (int steps = 0; steps <= dependsOnBySlug.size() && next != NONE; steps++) {
+            if (next == self) {
+                return true;
+            }
+            next = dependsOnBySlug.get(next);
+        }
+        return false;
+    }
+
+    /**
+     * As {@link #createsCycle(Link)}, with `earlier` written before `link` but not indexed yet,
+     * the items ahead of it in one batch insert. Slugs are taken by name, those of indexed rows
+     * first as they have the lower ids.
+     */
+    public synchronized boolean createsCycle(Link link, List<Link> earlier) {
+        if (earlier.isEmpty()) {
+            return createsCycle(link);
+        }
+        if (link.slug == null || link.dependsOn == null) {
+            return false;
+        }
+        Map<String, String> dependsOnBySlug = new HashMap<>();
+        for (long id : members(link.parentId)) {
+            String slug = slugName(slugOf.get(id));
+            if (id != link.id && slug != null) {
+                dependsOnBySlug.putIfAbsent(slug, slugName(dependsOn.get(id)));
+            }
+        }
+        for (Link other : earlier) {
+            if (other.parentId == link.parentId && other.slug != null) {
+                dependsOnBySlug.putIfAbsent(other.slug, other.dependsOn);
+            }
+        }
+        String next = link.dependsOn;
+        for (int steps = 0; steps <= dependsOnBySlug.size() && next != null; steps++) {
+            if (next.equals(link.slug)) {
+                return true;
+            }
+            next = dependsOnBySlug.get(next);
+        }
+        return false;
+    }
+
+    /**
+     * The tasks of a parent in dependency order, every task after the one it depends on and
+     * ties by id. If some tasks can never run the result has `cycle` with their ids instead:
+     * the tasks on a cycle and those that depend on one.
+     */
+    public synchronized JsonObject order(long parentId) {
+        long[] ids = members(parentId);
+        int[] dependency = resolve(ids);
+
+        // dependents of each task as linked lists in id order
+        int[] head = new int[ids.length];
+        int[] next = new int[ids.length];
+        Arrays.fill(head, NONE);
+        for (int i = ids.length - 1; i >= 0; i--) {
+            if (dependency[i] != NONE) {
+                next[i] = head[dependency[i]];
+                head[dependency[i]] = i;
+            }
+        }
+
+        // a task waits on one other task at most, so it is ready as soon as that one is placed
+        int[] queue = new int[ids.length];
+        int tail = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (dependency[i] == NONE) {
+                queue[tail++] = i;
+            }
+        }
+        for (int at = 0; at < tail; at++) {
+            for (int dependent = head[queue[at]]; dependent != NONE; dependent = next[dependent]) {
+                queue[tail++] = dependent;
+            }
+        }
+
+        if (tail < ids.length) {
+            boolean[] placed = new boolean[ids.length];
+            for (int at = 0; at < tail; at++) {
+                placed[queue[at]] = true;
+            }
+            JsonArray cycle = new JsonArray();
+            for (int i = 0; i < ids.length; i++) {
+                if (!placed[i]) {
+                    cycle.add(ids[i]);
+                }
+            }
+            return new JsonObject().put("parent_id", parentId).put("cycle", cycle);
+        }
+
+        JsonArray tasks = new JsonArray();
+        for (int at = 0; at < tail; at++) {
+            tasks.add(node(ids, dependency, queue[at]));
+        }
+        return new JsonObject().put("parent_id", parentId).put("tasks", tasks);
+    }
+
+    /**
+     * Tasks of a parent that are not in `completed` and whose dependency is: tasks without one,
+     * and tasks whose dependency has completed. A dependency naming no task never completes.
+     */
+    public synchronized JsonArray ready(long parentId, LongSet completed) {
+        long[] ids = members(parentId);
+        int[] dependency = resolve(ids);
+
+        JsonArray ready = new JsonArray();
+        for (int i = 0; i < ids.length; i++) {
+            if (completed.contains(ids[i]) || dependsOn.get(ids[i]) != NONE && dependency[i] == NONE) {
+                continue;
+            }
+            if (dependency[i] == NONE || completed.contains(ids[dependency[i]])) {
+                ready.add(node(ids, dependency, i));
+            }
+        }
+        return ready;
+    }
+
+    // ======== helpers ======== //
+
+    private void add(Link link) {
+        parentOf.put(link.id, link.parentId);
+        if (link.slug != null) {
+            slugOf.put(link.id, intern(link.slug));
+        }
+        if (link.dependsOn != null) {
+            dependsOn.put(link.id, intern(link.dependsOn));
+        }
+        LongArrayList siblings = children.get(link.parentId);
+        if (siblings == null) {
+            siblings = new LongArrayList(4);
+            children.put(link.parentId, siblings);
+        }
+        siblings.add(link.id);
+    }
+
+    private void detach(long id) {
+        if (!parentOf.containsKey(id)) {
+            return;
+        }
+        long parentId = parentOf.remove(id);
+        slugOf.remove(id);
+        dependsOn.remove(id);
+        LongArrayList siblings = children.get(parentId);
+        siblings.rem(id);
+        if (siblings.isEmpty()) {
+            children.remove(parentId);
+        }
+    }
+
+    // slugs are never released, the same few names come back with every instantiated master
+    private int intern(String slug) {
+        int id = slugIds.getInt(slug);
+        if (id == NONE) {
+            id = slugs.size();
+            slugs.add(slug);
+            slugIds.put(slug, id);
+        }
+        return id;
+    }
+
+    private String slugName(int id) {
+        return id == NONE ? null : slugs.get(id);
+    }
+
+    private long[] members(long parentId) {
+        LongArrayList siblings = children.get(parentId);
+        if (siblings == null) {
+            return new long[0];
+        }
+        long[] ids = siblings.toLongArray();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // position of the task each task depends on, NONE when it has no dependency or the slug is unknown
+    private int[] resolve(long[] ids) {
+        Int2IntOpenHashMap bySlug = new Int2IntOpenHashMap(ids.length);
+        bySlug.defaultReturnValue(NONE);
+        for (int i = 0; i < ids.length; i++) {
+            int slug = slugOf.get(ids[i]);
+            if (slug != NONE) {
+                bySlug.putIfAbsent(slug, i);
+            }
+        }
+        int[] dependency = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int slug = dependsOn.get(ids[i]);
+            dependency[i] = slug == NONE ? NONE : bySlug.get(slug);
+        }
+        return dependency;
+    }
+
+    // slug -> slug it depends on among the parent's tasks, leaving out the task being rewritten
+    private Int2IntOpenHashMap dependenciesBySlug(long parentId, long exclude) {
+        long[] ids = members(parentId);
+        Int2IntOpenHashMap bySlug = new Int2IntOpenHashMap(ids.length);
+        bySlug.defaultReturnValue(NONE);
+        for (long id : ids) {
+            int slug = slugOf.get(id);
+            if (id != exclude && slug != NONE && !bySlug.containsKey(slug)) {
+                bySlug.put(slug, dependsOn.get(id));
+            }
+        }
+        return bySlug;
+    }
+
+    private JsonObject node(long[] ids, int[] dependency, int i) {
+        return new JsonObject()
+            .put("id", ids[i])
+            .put("slug", slugName(slugOf.get(ids[i])))
+            .put("depends_on", dependency[i] == NONE ? null : ids[dependency[i]])
+            .put("depends_on_slug", slugName(dependsOn.get(ids[i])));
+    }
+
+    static long longValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static String stringValue(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    // older rows hold the text "null" for no slug
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() || value.equals("null") ? null : value;
+    }
+}
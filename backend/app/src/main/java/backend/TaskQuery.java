@@ -0,0 +1,127 @@
+package backend;
+
+import io.vertx.core.MultiMap;
+import io.vertx.sqlclient.Tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The `fields=` projection and column filters of a listing request, as the select list and
+ * where clause of its query.
+ *
+ * `fields=id,name,is_active` selects only those columns (id is always included, keyset paging
+ * needs it), so the TEXT columns are not read unless asked for. Filters are numeric and take
+ * one value or a comma separated list: `is_active=1&service_id=3,4`. Column names are only
+ * taken from the known columns and values are bound as parameters, so nothing from the
+ * request reaches the SQL text.
+ */
+public final class TaskQuery {
+
+    /** Every column, no filter. */
+    public static final TaskQuery ALL = new TaskQuery("*", new String[0], new ArrayList<>());
+
+    static final String[] FILTERS = {"is_active", "task_type", "service_id", "parent_id"};
+
+    // at most this many values in one filter's in (...) list
+    private static final int MAX_FILTER_VALUES = 100;
+
+    private final String columns;
+    private final String[] conditions;
+    private final List<Object> values;
+
+    private TaskQuery(String columns, String[] conditions, List<Object> values) {
+        this.columns = columns;
+        this.conditions = conditions;
+        this.values = values;
+    }
+
+    /**
+     * Reads fields and the filters from query parameters.
+     *
+     * @param children true for the tasks table, which has parent_id and version
+     * @throws IllegalArgumentException naming an unknown field or a filter value that is not a number
+     */
+    public static TaskQuery from(MultiMap params, boolean children) {
+        List<String> known = new ArrayList<>(Arrays.asList(children ? TaskRepository.CHILD_TASK_COLUMNS : TaskRepository.TASK_COLUMNS));
+        known.add("id");
+        if (children) {
+            known.add("version");
+        }
+
+        String columns = "*";
+        String fields = params.get("fields");
+        if (fields != null && !fields.isBlank()) {
+            StringBuilder select = new StringBuilder("id");
+            for (String field : fields.split(",")) {
+                field = field.trim();
+                if (field.isEmpty() || field.equals("id")) {
+                    continue;
+                }
+                if (!known.contains(field)) {
+                    throw new IllegalArgumentException("unknown field " + field);
+                }
+                select.append(", ").append(field);
+            }
+            columns = select.toString();
+        }
+
+        List<String> conditions = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (String filter : FILTERS) {
+            String param = params.get(filter);
+            if (param == null || !known.contains(filter)) {
+                continue;
+            }
+            String[] items = param.split(",");
+            if (items.length > MAX_FILTER_VALUES) {
+                throw new IllegalArgumentException(filter + " takes at most " + MAX_FILTER_VALUES + " values");
+            }
+            for (String item : items) {
+                try {
+                    values.add(Long.parseLong(item.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(filter + " must be a number or a list of numbers");
+                }
+            }
+            conditions.add(items.length == 1 ? filter + " = ?" : filter + " in (" + "?, ".repeat(items.length - 1) + "?)");
+        }
+
+        if (columns.equals("*") && conditions.isEmpty()) {
+            return ALL;
+        }
+        return new TaskQuery(columns, conditions.toArray(new String[0]), values);
+    }
+
+    public boolean isAll() {
+        return this == ALL;
+    }
+
+    /** select ... from `table` where the filters and `extra` conditions hold, order by id. */
+    String sql(String table, String... extra) {
+        StringBuilder sql = new StringBuilder("select ").append(columns).append(" from ").append(table);
+        String separator = " where ";
+        for (String condition : conditions) {
+            sql.append(separator).append(condition);
+            separator = " and ";
+        }
+        for (String condition : extra) {
+            sql.append(separator).append(condition);
+            separator = " and ";
+        }
+        return sql.append(" order by id").toString();
+    }
+
+    /** The filter values followed by `extra`, in the order of the placeholders from {@link #sql}. */
+    Tuple tuple(Object... extra) {
+        Tuple tuple = Tuple.tuple();
+        for (Object value : values) {
+            tuple.addValue(value);
+        }
+        for (Object value : extra) {
+            tuple.addValue(value);
+        }
+        return tuple;
+    }
+}
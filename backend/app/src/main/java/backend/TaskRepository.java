@@ -0,0 +1,384 @@
+package backend;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.jdbcclient.JDBCPool;
+import io.vertx.mysqlclient.MySQLBuilder;
+import io.vertx.mysqlclient.MySQLClient;
+import io.vertx.mysqlclient.MySQLConnectOptions;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.RowStream;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Data access for the masterTasks and tasks tables.
+ *
+ * All statements are parameterized and run as server-side prepared statements, which the
+ * MySQL client caches per connection, so MySQL parses each statement once per connection
+ * instead of once per request.
+ */
+public class TaskRepository {
+
+    // columns shared by masterTasks and tasks, in insert order
+    static final String[] TASK_COLUMNS = {
+        "name", "slug", "description", "help_text",
+        "input_format", "output_format", "dependent_task_slug", "repeats_on",
+        "bulk_input", "input_http_method", "api_endpoint", "api_timeout_in_ms",
+        "response_type", "is_json_input_needed", "task_type", "is_active", "is_optional",
+        "eta", "service_id", "email_list", "action"
+    };
+
+    // tasks additionally belong to a master through parent_id
+    static final String[] CHILD_TASK_COLUMNS = withParent(TASK_COLUMNS);
+
+    // longest value of the varchar columns of tasks (db/schema.sql) in characters, text columns hold TEXT_BYTES
+    private static final Map<String, Integer> VARCHAR_COLUMNS = Map.of(
+        "name", 255, "slug", 255, "dependent_task_slug", 255, "action", 255, "api_endpoint", 1024);
+    private static final Set<String> TEXT_COLUMNS = Set.of(
+        "description", "help_text", "input_format", "output_format", "eta", "email_list");
+    private static final int TEXT_BYTES = 65535;
+
+    // integer columns of tasks with their range; tinyint, int and bigint
+    private static final Map<String, long[]> INTEGER_COLUMNS = Map.ofEntries(
+        Map.entry("bulk_input", new long[]{Byte.MIN_VALUE, Byte.MAX_VALUE}),
+        Map.entry("is_json_input_needed", new long[]{Byte.MIN_VALUE, Byte.MAX_VALUE}),
+        Map.entry("is_active", new long[]{Byte.MIN_VALUE, Byte.MAX_VALUE}),
+        Map.entry("is_optional", new long[]{Byte.MIN_VALUE, Byte.MAX_VALUE}),
+        Map.entry("repeats_on", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("input_http_method", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("api_timeout_in_ms", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("response_type", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("task_type", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("service_id", new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE}),
+        Map.entry("parent_id", new long[]{Long.MIN_VALUE, Long.MAX_VALUE}));
+
+    // rows fetched per round trip when streaming
+    private static final int STREAM_FETCH_SIZE = 256;
+
+    private static final String SELECT_MASTER = "select * from masterTasks where id = ?";
+    private static final String SELECT_MASTERS = "select * from masterTasks order by id";
+    private static final String PAGE_MASTERS = "select * from masterTasks where id > ? order by id limit ?";
+    private static final String INSERT_MASTER = insert("masterTasks", TASK_COLUMNS);
+    private static final String SELECT_MASTER_LINKS = "select id, slug, dependent_task_slug from masterTasks";
+
+    private static final String SELECT_TASK = "select * from tasks where id = ?";
+    private static final String SELECT_CHILD_TASKS = "select * from tasks where parent_id = ? order by id";
+    private static final String PAGE_CHILD_TASKS = "select * from tasks where parent_id = ? and id > ? order by id limit ?";
+    private static final String INSERT_TASK = insert("tasks", CHILD_TASK_COLUMNS);
+    private static final String SELECT_TASK_VERSION = "select version from tasks where id = ?";
+    private static final String DELETE_TASK = "delete from tasks where id = ?";
+    private static final String SELECT_TASK_LINKS = "select id, parent_id, slug, dependent_task_slug from tasks";
+
+    // what the scheduler needs to call a task, for the tasks it should call
+    private static final String SCHEDULED_COLUMNS = "id, slug, parent_id, api_endpoint, input_http_method, api_timeout_in_ms, repeats_on, service_id, output_format";
+    private static final String SCHEDULED_WHERE = "is_active = 1 and repeats_on > 0 and api_endpoint is not null";
+    private static final String SELECT_SCHEDULED = "select " + SCHEDULED_COLUMNS + " from tasks where " + SCHEDULED_WHERE;
+    private static final String INSERT_RUN = "insert into task_runs (task_id, started_at, duration_ms, status_code, error) values (?, ?, ?, ?, ?)";
+
+    /** Reads an open cursor; the returned future completes once the stream has been consumed. */
+    public interface RowConsumer {
+        Future<Void> consume(RowStream<Row> stream);
+    }
+
+    private final Pool pool;
+
+    public TaskRepository(Pool pool) {
+        this.pool = pool;
+    }
+
+    // ======== connection pool ======== //
+    // shared by name, so all App instances deployed in one Vert.x instance use the same connections.
+    // With db.jdbc_url set a JDBC pool is used instead, e.g. H2 in MySQL mode for tests and load tests.
+    public static Pool createPool(Vertx vertx, JsonObject config) {
+        if (config.containsKey("jdbc_url")) {
+            return JDBCPool.pool(vertx, new JsonObject()
+                .put("url", config.getString("jdbc_url"))
+                .put("driver_class", config.getString("driver_class"))
+                .put("user", config.getString("user"))
+                .put("password", config.getString("password"))
+                .put("max_pool_size", config.getInteger("max_pool_size", 30)));
+        }
+
+        MySQLConnectOptions connectOptions = new MySQLConnectOptions()
+            .setHost(config.getString("host", "localhost"))
+            .setPort(config.getInteger("port", 3306))
+            .setDatabase(config.getString("database"))
+            .setUser(config.getString("user"))
+            .setPassword(config.getString("password"))
+            .setPipeliningLimit(config.getInteger("pipelining_limit", 256))
+            .setCachePreparedStatements(true)
+            .setPreparedStatementCacheMaxSize(config.getInteger("prepared_statement_cache_size", 64));
+
+        PoolOptions poolOptions = new PoolOptions()
+            .setMaxSize(config.getInteger("max_pool_size", 30))
+            .setMaxWaitQueueSize(config.getInteger("max_wait_queue_size", 1000))
+            .setShared(true)
+            .setName(config.getString("pool_name", "taskdb"));
+
+        return MySQLBuilder.pool()
+            .with(poolOptions)
+            .connectingTo(connectOptions)
+            .using(vertx)
+            .build();
+    }
+
+    /**
+     * A connection of `pool` holding the MySQL lock `name` (GET_LOCK), after waiting up to
+     * timeoutSeconds for another session to release it; null if it did not. The lock is released
+     * when the connection is closed or lost.
+     */
+    public static Future<SqlConnection> lock(Pool pool, String name, int timeoutSeconds) {
+        return pool.getConnection().compose(conn ->
+            conn.preparedQuery("select get_lock(?, ?)").execute(Tuple.of(name, timeoutSeconds))
+            .transform(res -> {
+                if (res.succeeded() && Integer.valueOf(1).equals(res.result().iterator().next().getInteger(0))) {
+                    return Future.succeededFuture(conn);
+                }
+                return conn.close().transform(v -> res.failed() ? Future.failedFuture(res.cause()) : Future.succeededFuture());
+            }));
+    }
+
+    /** True while `conn`, from {@link #lock}, still holds the lock `name`. */
+    public static Future<Boolean> holdsLock(SqlConnection conn, String name) {
+        return conn.preparedQuery("select is_used_lock(?) = connection_id()").execute(Tuple.of(name))
+            .map(rows -> Integer.valueOf(1).equals(rows.iterator().next().getInteger(0)));
+    }
+
+    // ======== masterTasks ======== //
+    public Future<RowSet<Row>> getMaster(long id) {
+        return pool.preparedQuery(SELECT_MASTER).execute(Tuple.of(id));
+    }
+
+    // the fixed statements serve the unfiltered lists, a TaskQuery builds the others
+    public Future<RowSet<Row>> pageMasters(TaskQuery query, long afterId, int limit) {
+        String sql = query.isAll() ? PAGE_MASTERS : query.sql("masterTasks", "id > ?") + " limit ?";
+        return pool.preparedQuery(sql).execute(query.tuple(afterId, limit));
+    }
+
+    public Future<Void> streamMasters(TaskQuery query, RowConsumer consumer) {
+        return stream(query.isAll() ? SELECT_MASTERS : query.sql("masterTasks"), query.tuple(), consumer);
+    }
+
+    // only the columns the dependency index needs, see TaskGraph
+    public Future<Void> streamMasterLinks(RowConsumer consumer) {
+        return stream(SELECT_MASTER_LINKS, Tuple.tuple(), consumer);
+    }
+
+    public Future<RowSet<Row>> insertMaster(JsonObject master) {
+        return pool.preparedQuery(INSERT_MASTER).execute(values(master, TASK_COLUMNS));
+    }
+
+    // ======== tasks ======== //
+    public Future<RowSet<Row>> getTask(long id) {
+        return pool.preparedQuery(SELECT_TASK).execute(Tuple.of(id));
+    }
+
+    public Future<RowSet<Row>> pageChildTasks(long parentId, TaskQuery query, long afterId, int limit) {
+        String sql = query.isAll() ? PAGE_CHILD_TASKS : query.sql("tasks", "parent_id = ?", "id > ?") + " limit ?";
+        return pool.preparedQuery(sql).execute(query.tuple(parentId, afterId, limit));
+    }
+
+    public Future<Void> streamChildTasks(long parentId, TaskQuery query, RowConsumer consumer) {
+        return stream(query.isAll() ? SELECT_CHILD_TASKS : query.sql("tasks", "parent_id = ?"), query.tuple(parentId), consumer);
+    }
+
+    // tasks of every parent, narrowed by the query's filters
+    public Future<RowSet<Row>> pageTasks(TaskQuery query, long afterId, int limit) {
+        return pool.preparedQuery(query.sql("tasks", "id > ?") + " limit ?").execute(query.tuple(afterId, limit));
+    }
+
+    public Future<Void> streamTasks(TaskQuery query, RowConsumer consumer) {
+        return stream(query.sql("tasks"), query.tuple(), consumer);
+    }
+
+    public Future<Void> streamTaskLinks(RowConsumer consumer) {
+        return stream(SELECT_TASK_LINKS, Tuple.tuple(), consumer);
+    }
+
+    public Future<RowSet<Row>> insertTask(JsonObject task) {
+        return pool.preparedQuery(INSERT_TASK).execute(values(task, CHILD_TASK_COLUMNS));
+    }
+
+    public Future<RowSet<Row>> getTaskVersion(long id) {
+        return pool.preparedQuery(SELECT_TASK_VERSION).execute(Tuple.of(id));
+    }
+
+    /** True when the body carries at least one column of tasks. */
+    public static boolean hasTaskColumns(JsonObject body) {
+        for (String column : CHILD_TASK_COLUMNS) {
+            if (body.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Why the database would refuse a column of `changes`, null when it would take them all.
+     * For updates that are answered before they are written, see WriteBehind.
+     */
+    public static String invalidColumn(JsonObject changes) {
+        for (String column : CHILD_TASK_COLUMNS) {
+            Object value = changes.getValue(column);
+            if (value == null) {
+                continue;
+            }
+            Integer length = VARCHAR_COLUMNS.get(column);
+            if (length != null || TEXT_COLUMNS.contains(column)) {
+                Object text = bindable(value);
+                if (!(text instanceof String)) {
+                    return column + " must be a string";
+                }
+                if (length != null && ((String) text).length() > length) {
+                    return column + " must be at most " + length + " characters";
+                }
+                if (length == null && ((String) text).getBytes(StandardCharsets.UTF_8).length > TEXT_BYTES) {
+                    return column + " must be at most " + TEXT_BYTES + " bytes";
+                }
+                continue;
+            }
+            long[] range = INTEGER_COLUMNS.get(column);
+            if (value instanceof Boolean && range[1] == Byte.MAX_VALUE) {
+                continue;
+            }
+            if (!(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+                || ((Number) value).longValue() < range[0] || ((Number) value).longValue() > range[1]) {
+                return column + " must be an integer between " + range[0] + " and " + range[1];
+            }
+        }
+        return null;
+    }
+
+    // only the columns present in the body are written and the row version is bumped.
+    // With expectedVersion the row is only touched if nobody changed it since that version.
+    public Future<RowSet<Row>> patchTask(long id, JsonObject changes, Integer expectedVersion) {
+        Tuple tuple = Tuple.tuple();
+        StringBuilder sql = patch(changes, tuple);
+        tuple.addLong(id);
+        if (expectedVersion != null) {
+            sql.append(" and version = ?");
+            tuple.addInteger(expectedVersion);
+        }
+        return pool.preparedQuery(sql.toString()).execute(tuple);
+    }
+
+    /**
+     * Writes buffered updates, each {"id": 12, "changes": {...}}, in one transaction with one
+     * batched statement per set of changed columns. See WriteBehind.
+     */
+    public Future<Void> patchTasks(Collection<JsonObject> updates) {
+        if (updates.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        Map<String, List<Tuple>> batches = new LinkedHashMap<>();
+        for (JsonObject update : updates) {
+            Tuple tuple = Tuple.tuple();
+            String sql = patch(update.getJsonObject("changes"), tuple).toString();
+            tuple.addLong(update.getLong("id"));
+            batches.computeIfAbsent(sql, k -> new ArrayList<>()).add(tuple);
+        }
+        return pool.withTransaction(conn -> {
+            Future<Void> written = Future.succeededFuture();
+            for (Map.Entry<String, List<Tuple>> batch : batches.entrySet()) {
+                written = written.compose(v -> conn.preparedQuery(batch.getKey()).executeBatch(batch.getValue()).mapEmpty());
+            }
+            return written;
+        });
+    }
+
+    public Future<RowSet<Row>> deleteTask(long id) {
+        return pool.preparedQuery(DELETE_TASK).execute(Tuple.of(id));
+    }
+
+    // ======== scheduler ======== //
+    public Future<Void> streamScheduledTasks(RowConsumer consumer) {
+        return stream(SELECT_SCHEDULED, Tuple.tuple(), consumer);
+    }
+
+    // those of `ids` that are still to be scheduled, ids missing from the result are not
+    public Future<RowSet<Row>> getScheduledTasks(List<Long> ids) {
+        String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        return pool.preparedQuery("select " + SCHEDULED_COLUMNS + " from tasks where id in (" + placeholders + ") and " + SCHEDULED_WHERE)
+            .execute(Tuple.wrap(new ArrayList<>(ids)));
+    }
+
+    /** One tuple per run: task_id, started_at (epoch ms), duration_ms, status_code, error. */
+    public Future<Void> insertRuns(List<Tuple> runs) {
+        return pool.preparedQuery(INSERT_RUN).executeBatch(runs).mapEmpty();
+    }
+
+    // ======== helpers ======== //
+
+    // the cursor lives on a dedicated connection that goes back to the pool once the consumer is done
+    private Future<Void> stream(String sql, Tuple args, RowConsumer consumer) {
+        return pool.withConnection(conn -> conn.prepare(sql).compose(statement ->
+            consumer.consume(statement.createStream(STREAM_FETCH_SIZE, args))
+                .eventually(() -> statement.close())));
+    }
+
+    // generated key of an insert, for both the MySQL client and the JDBC pool
+    static Object insertedId(RowSet<Row> rows) {
+        Long id = rows.property(MySQLClient.LAST_INSERTED_ID);
+        if (id != null) {
+            return id;
+        }
+        Row keys = rows.property(JDBCPool.GENERATED_KEYS);
+        return keys == null ? null : keys.getValue(0);
+    }
+
+    // binds the columns from a request body, JSON columns are stored as their text
+    static Tuple values(JsonObject body, String[] columns) {
+        Tuple tuple = Tuple.tuple();
+        for (String column : columns) {
+            tuple.addValue(bindable(body.getValue(column)));
+        }
+        return tuple;
+    }
+
+    private static Object bindable(Object value) {
+        if (value instanceof JsonObject || value instanceof JsonArray) {
+            return Json.encode(value);
+        }
+        return value;
+    }
+
+    // update of the columns present in `changes` that bumps the version, up to "where id = ?"; their values go into `tuple`
+    private static StringBuilder patch(JsonObject changes, Tuple tuple) {
+        StringBuilder sql = new StringBuilder("update tasks set ");
+        for (String column : CHILD_TASK_COLUMNS) {
+            if (changes.containsKey(column)) {
+                sql.append(column).append(" = ?, ");
+                tuple.addValue(bindable(changes.getValue(column)));
+            }
+        }
+        return sql.append("version = version + 1 where id = ?");
+    }
+
+    static String[] withParent(String[] columns) {
+        String[] all = Arrays.copyOf(columns, columns.length + 1);
+        all[columns.length] = "parent_id";
+        return all;
+    }
+
+    static String insert(String table, String[] columns) {
+        String placeholders = String.join(",", Collections.nCopies(columns.length, "?"));
+        return "insert into " + table + " (" + String.join(",", columns) + ") values (" + placeholders + ")";
+    }
+}
@@ -0,0 +1,493 @@
+package backend;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.micrometer.backends.BackendRegistries;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the api_endpoint of every active task with repeats_on > 0, once per repeats_on
+ * units (scheduler.repeat_unit_ms, seconds by default), and records each call in task_runs.
+ *
+ * Deployed once per process; everything runs on the verticle's event loop, so the state below
+ * needs no locking. Due times sit in a timing wheel with one slot per tick, keyed by absolute
+ * tick number, so scheduling is a map insert and each tick only touches the tasks due in it.
+ * Calls go through one WebClient with the task's api_timeout_in_ms. At most
+ * scheduler.max_concurrent_per_service calls per service_id are in flight, further due tasks
+ * wait in a per-service queue, and a task that is still running or waiting when it comes due
+ * again skips that turn. Results are buffered and inserted in batches.
+ *
+ * The App routes announce writes on {@link App#TASKS_CHANGED_ADDRESS} and the tasks named
+ * there are read again, so edits take effect without a restart. A 2xx answer that does not
+ * match the task's output_format is recorded as a failed run.
+ *
+ * Of several processes against one database only one runs the scheduler, see {@link #deploy}.
+ */
+public class TaskScheduler extends AbstractVerticle {
+
+    private static final Logger LOG = Logger.getLogger(TaskScheduler.class.getName());
+
+    // input_http_method values, anything else is a GET
+    private static final HttpMethod[] METHODS = {
+        HttpMethod.GET, HttpMethod.POST, HttpMethod.PUT, HttpMethod.PATCH, HttpMethod.DELETE
+    };
+
+    // ids per lookup when changed tasks are read again
+    private static final int REFRESH_CHUNK = 100;
+
+    private static final int MAX_ERROR_LENGTH = 255;
+
+    // one task the scheduler calls
+    private static final class Job {
+        final long id;
+        final String slug;
+        final long parentId;
+        final String url;
+        final HttpMethod method;
+        final long timeoutMs;
+        final int serviceId;
+        final long intervalMs;
+        final SchemaValidator output;
+
+        long dueAt;
+
+        Job(Row row, long unitMs, long defaultTimeoutMs) {
+            id = row.getLong("id");
+            slug = row.getString("slug");
+            parentId = row.getValue("parent_id") == null ? 0 : row.getLong("parent_id");
+            url = row.getString("api_endpoint");
+            method = method(row.getValue("input_http_method"), HttpMethod.GET);
+            Integer timeout = row.getInteger("api_timeout_in_ms");
+            timeoutMs = timeout == null || timeout <= 0 ? defaultTimeoutMs : timeout;
+            serviceId = row.getValue("service_id") == null ? 0 : row.getInteger("service_id");
+            intervalMs = row.getInteger("repeats_on") * unitMs;
+            output = outputFormat(id, row.getValue("output_format"));
+        }
+    }
+
+    // a broken output_format is refused by the write routes, older rows with one are not checked
+    private static SchemaValidator outputFormat(long id, Object format) {
+        try {
+            return SchemaValidator.compile(format);
+        } catch (RuntimeException e) {
+            LOG.warning("task " + id + " has a broken output_format, its answers are not checked: " + e.getMessage());
+            return SchemaValidator.ANY;
+        }
+    }
+
+    /** input_http_method as an HTTP method, `fallback` when it is not set or out of range. */
+    static HttpMethod method(Object value, HttpMethod fallback) {
+        if (!(value instanceof Number)) {
+            return fallback;
+        }
+        int index = ((Number) value).intValue();
+        return index >= 0 && index < METHODS.length ? METHODS[index] : fallback;
+    }
+
+    private long tickMs;
+    private long unitMs;
+    private long defaultTimeoutMs;
+    private int maxPerService;
+    private int resultBatchSize;
+
+    private TaskRepository repository;
+    private WebClient client;
+
+    private final Long2ObjectOpenHashMap<Job> jobs = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<LongArrayList> wheel = new Long2ObjectOpenHashMap<>();
+    private long lastTick;
+
+    private final Int2IntOpenHashMap running = new Int2IntOpenHashMap();
+    private final Int2ObjectOpenHashMap<ArrayDeque<Job>> waiting = new Int2ObjectOpenHashMap<>();
+    // tasks running or waiting for their service, by id so a task read again keeps the mark
+    private final LongOpenHashSet busy = new LongOpenHashSet();
+
+    // tasks taken off the schedule while the initial load is running, so the load does not put them back
+    private final LongOpenHashSet removedWhileLoading = new LongOpenHashSet();
+    private boolean loaded;
+
+    private List<Tuple> results = new ArrayList<>();
+
+    private Counter succeeded;
+    private Counter failed;
+    private Counter skipped;
+
+    /**
+     * Deploys the scheduler once this process holds the MySQL lock scheduler.lock_name, taken
+     * with GET_LOCK on a connection of its own. While another process holds it this one tries
+     * again every lock_retry_ms, and every lock_check_ms it checks that the lock is still its
+     * own; if the connection was lost the scheduler is undeployed until the lock is taken again.
+     * Completes after the first try, `deployed` gets the id of each deployment. With a jdbc_url
+     * stand-in database there is one process and no lock.
+     */
+    public static Future<Void> deploy(Vertx vertx, JsonObject config, Handler<String> deployed) {
+        JsonObject db = config.getJsonObject("db", new JsonObject());
+        if (db.containsKey("jdbc_url")) {
+            return vertx.deployVerticle(new TaskScheduler(), new DeploymentOptions().setConfig(config)).onSuccess(deployed).mapEmpty();
+        }
+        return new SingleRunner(vertx, config, deployed).attempt();
+    }
+
+    // takes the lock, deploys the scheduler and watches the lock, or tries again later
+    private static final class SingleRunner {
+        private final Vertx vertx;
+        private final JsonObject config;
+        private final Handler<String> deployed;
+        private final Pool pool;
+        private final String name;
+        private final long retryMs;
+        private final long checkMs;
+        private boolean waiting;
+
+        SingleRunner(Vertx vertx, JsonObject config, Handler<String> deployed) {
+            JsonObject scheduler = config.getJsonObject("scheduler", new JsonObject());
+            this.vertx = vertx;
+            this.config = config;
+            this.deployed = deployed;
+            // a pool of its own, the shared one would hand the connection holding the lock to others
+            this.pool = TaskRepository.createPool(vertx, config.getJsonObject("db", new JsonObject()).copy()
+                .put("max_pool_size", 1).put("pool_name", "scheduler-lock"));
+            this.name = scheduler.getString("lock_name", "task-scheduler");
+            this.retryMs = scheduler.getLong("lock_retry_ms", 10000L);
+            this.checkMs = scheduler.getLong("lock_check_ms", 5000L);
+        }
+
+        Future<Void> attempt() {
+            return TaskRepository.lock(pool, name, 0)
+            .<Void>compose(conn -> {
+                if (conn == null) {
+                    if (!waiting) {
+                        LOG.info("another process runs the scheduler, standing by");
+                        waiting = true;
+                    }
+                    retry();
+                    return Future.succeededFuture();
+                }
+                waiting = false;
+                return vertx.deployVerticle(new TaskScheduler(), new DeploymentOptions().setConfig(config))
+                .onSuccess(id -> {
+                    deployed.handle(id);
+                    watch(conn, id);
+                })
+                .onFailure(err -> conn.close())
+                .mapEmpty();
+            })
+            .onFailure(err -> {
+                LOG.log(Level.WARNING, "could not take the scheduler lock, trying again", err);
+                retry();
+            })
+            .otherwiseEmpty();
+        }
+
+        private void retry() {
+            vertx.setTimer(retryMs, t -> attempt());
+        }
+
+        private void watch(SqlConnection conn, String id) {
+            vertx.setPeriodic(checkMs, timer -> {
+                if (!vertx.deploymentIDs().contains(id)) {
+                    // undeployed on shutdown
+                    vertx.cancelTimer(timer);
+                    conn.close();
+                    return;
+                }
+                TaskRepository.holdsLock(conn, name).onComplete(res -> {
+                    if (res.succeeded() && res.result()) {
+                        return;
+                    }
+                    vertx.cancelTimer(timer);
+                    LOG.log(Level.SEVERE, "lost the scheduler lock, stopping the scheduler", res.cause());
+                    conn.close();
+                    vertx.undeploy(id).onComplete(v -> retry());
+                });
+            });
+        }
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        JsonObject config = config().getJsonObject("scheduler", new JsonObject());
+        tickMs = config.getLong("tick_ms", 100L);
+        unitMs = config.getLong("repeat_unit_ms", 1000L);
+        defaultTimeoutMs = config.getLong("default_timeout_ms", 30000L);
+        maxPerService = config.getInteger("max_concurrent_per_service", 8);
+        resultBatchSize = config.getInteger("result_batch_size", 500);
+
+        Pool pool = TaskRepository.createPool(vertx, config().getJsonObject("db", new JsonObject()));
+        repository = new TaskRepository(pool);
+        client = WebClient.create(vertx, new WebClientOptions()
+            .setKeepAlive(true)
+            .setMaxPoolSize(config.getInteger("max_connections", 256))
+            .setFollowRedirects(false));
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry != null) {
+            succeeded = registry.counter("scheduler_runs", "outcome", "succeeded");
+            failed = registry.counter("scheduler_runs", "outcome", "failed");
+            skipped = registry.counter("scheduler_runs", "outcome", "skipped");
+            registry.gauge("scheduler_tasks", jobs, Long2ObjectOpenHashMap::size);
+        }
+
+        vertx.eventBus().<JsonArray>consumer(App.TASKS_CHANGED_ADDRESS, msg -> refresh(msg.body()));
+
+        lastTick = System.currentTimeMillis() / tickMs;
+        repository.streamScheduledTasks(stream -> {
+            Promise<Void> done = Promise.promise();
+            stream.exceptionHandler(done::tryFail);
+            stream.endHandler(v -> done.tryComplete());
+            stream.handler(row -> {
+                long id = row.getLong("id");
+                if (!jobs.containsKey(id) && !removedWhileLoading.contains(id)) {
+                    // first runs are spread over one interval instead of all firing at once
+                    Job job = new Job(row, unitMs, defaultTimeoutMs);
+                    add(job, System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(job.intervalMs + 1));
+                }
+            });
+            return done.future();
+        }).onComplete(res -> {
+            if (res.failed()) {
+                startPromise.fail(res.cause());
+                return;
+            }
+            loaded = true;
+            removedWhileLoading.clear();
+            vertx.setPeriodic(tickMs, id -> tick());
+            vertx.setPeriodic(config.getLong("result_flush_ms", 1000L), id -> flush());
+            LOG.info("scheduler started with " + jobs.size() + " tasks");
+            startPromise.complete();
+        });
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        // runs still in flight are not waited for, what has finished is written
+        flush().onComplete(res -> {
+            client.close();
+            stopPromise.complete();
+        });
+    }
+
+    // ======== timing wheel ======== //
+
+    private void add(Job job, long dueAt) {
+        jobs.put(job.id, job);
+        schedule(job, dueAt);
+    }
+
+    private void schedule(Job job, long dueAt) {
+        job.dueAt = dueAt;
+        // never into a slot that has already been passed
+        long slot = Math.max(dueAt / tickMs, lastTick + 1);
+        LongArrayList due = wheel.get(slot);
+        if (due == null) {
+            due = new LongArrayList(4);
+            wheel.put(slot, due);
+        }
+        due.add(job.id);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long current = now / tickMs;
+        // catches up on every slot since the last tick, e.g. after a long GC pause
+        for (long slot = lastTick + 1; slot <= current; slot++) {
+            lastTick = slot;
+            LongArrayList due = wheel.remove(slot);
+            if (due == null) {
+                continue;
+            }
+            for (int i = 0; i < due.size(); i++) {
+                Job job = jobs.get(due.getLong(i));
+                // a rescheduled or removed task leaves its old entry behind
+                if (job != null && Math.max(job.dueAt / tickMs, slot) == slot) {
+                    fire(job, now);
+                }
+            }
+        }
+    }
+
+    private void fire(Job job, long now) {
+        // fixed rate, unless the scheduler fell behind by more than an interval
+        long next = job.dueAt + job.intervalMs;
+        schedule(job, next > now ? next : now + job.intervalMs);
+
+        if (!busy.add(job.id)) {
+            if (skipped != null) {
+                skipped.increment();
+            }
+            return;
+        }
+        if (running.get(job.serviceId) < maxPerService) {
+            call(job);
+        } else {
+            ArrayDeque<Job> queue = waiting.get(job.serviceId);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waiting.put(job.serviceId, queue);
+            }
+            queue.add(job);
+        }
+    }
+
+    // ======== calls ======== //
+
+    private void call(Job job) {
+        running.addTo(job.serviceId, 1);
+        long startedAt = System.currentTimeMillis();
+
+        Future<HttpResponse<Buffer>> response;
+        try {
+            HttpRequest<Buffer> request = client.requestAbs(job.method, job.url).timeout(job.timeoutMs);
+            boolean hasBody = job.method == HttpMethod.POST || job.method == HttpMethod.PUT || job.method == HttpMethod.PATCH;
+            response = hasBody ? request.sendJsonObject(envelope(job, startedAt)) : request.send();
+        } catch (RuntimeException e) {
+            // e.g. an api_endpoint that is not an absolute URL
+            response = Future.failedFuture(e);
+        }
+
+        response.onComplete(res -> {
+            long duration = System.currentTimeMillis() - startedAt;
+            Integer status = res.succeeded() ? res.result().statusCode() : null;
+            boolean ok = status != null && status >= 200 && status < 300;
+            String error = res.succeeded() ? null : String.valueOf(res.cause().getMessage());
+            if (ok && job.output != SchemaValidator.ANY) {
+                error = checkOutput(job.output, res.result().body());
+                ok = error == null;
+            }
+            record(job.id, startedAt, duration, status, error);
+            if (succeeded != null) {
+                (ok ? succeeded : failed).increment();
+            }
+            done(job);
+        });
+    }
+
+    // frees the service slot and hands it to the next task waiting for it
+    private void done(Job job) {
+        busy.remove(job.id);
+        running.addTo(job.serviceId, -1);
+        ArrayDeque<Job> queue = waiting.get(job.serviceId);
+        while (queue != null && !queue.isEmpty()) {
+            Job next = queue.poll();
+            if (jobs.get(next.id) == next) {
+                call(next);
+                break;
+            }
+            // changed or removed while it waited, it runs again when next due
+            busy.remove(next.id);
+        }
+        if (queue != null && queue.isEmpty()) {
+            waiting.remove(job.serviceId);
+        }
+    }
+
+    private static String checkOutput(SchemaValidator output, Buffer body) {
+        Object value;
+        try {
+            value = body == null ? null : Json.decodeValue(body);
+        } catch (DecodeException e) {
+            value = null;
+        }
+        String error = output.validate(value);
+        return error == null ? null : "output_format: " + error;
+    }
+
+    // body sent to POST, PUT and PATCH endpoints
+    private static JsonObject envelope(Job job, long startedAt) {
+        return new JsonObject()
+            .put("task_id", job.id)
+            .put("slug", job.slug)
+            .put("parent_id", job.parentId)
+            .put("scheduled_at", startedAt);
+    }
+
+    // ======== results ======== //
+
+    private void record(long taskId, long startedAt, long duration, Integer status, String error) {
+        if (error != null && error.length() > MAX_ERROR_LENGTH) {
+            error = error.substring(0, MAX_ERROR_LENGTH);
+        }
+        results.add(Tuple.of(taskId, startedAt, (int) duration, status, error));
+        if (results.size() >= resultBatchSize) {
+            flush();
+        }
+    }
+
+    private Future<Void> flush() {
+        if (results.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        List<Tuple> batch = results;
+        results = new ArrayList<>();
+        return repository.insertRuns(batch).onFailure(err ->
+            LOG.log(Level.WARNING, "could not write " + batch.size() + " task runs", err));
+    }
+
+    // ======== changes ======== //
+
+    // reads the named tasks again, adding, rescheduling or dropping them
+    private void refresh(JsonArray ids) {
+        for (int from = 0; from < ids.size(); from += REFRESH_CHUNK) {
+            List<Long> chunk = new ArrayList<>();
+            for (int i = from; i < Math.min(from + REFRESH_CHUNK, ids.size()); i++) {
+                chunk.add(ids.getLong(i));
+            }
+            repository.getScheduledTasks(chunk).onComplete(res -> {
+                if (res.failed()) {
+                    LOG.log(Level.WARNING, "could not reload scheduled tasks " + chunk, res.cause());
+                    return;
+                }
+                LongOpenHashSet found = new LongOpenHashSet();
+                for (Row row : res.result()) {
+                    Job job = new Job(row, unitMs, defaultTimeoutMs);
+                    found.add(job.id);
+                    Job previous = jobs.get(job.id);
+                    // an unchanged cadence keeps its place, a new one starts counting now
+                    long dueAt = previous != null && previous.intervalMs == job.intervalMs
+                        ? previous.dueAt
+                        : System.currentTimeMillis() + job.intervalMs;
+                    add(job, dueAt);
+                }
+                for (Long id : chunk) {
+                    if (!found.contains((long) id)) {
+                        jobs.remove((long) id);
+                        if (!loaded) {
+                            removedWhileLoading.add((long) id);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package backend;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Compiled input_format and output_format validators by task and master template id.
+ *
+ * A row's formats are compiled the first time they are needed and kept until the row is
+ * written again; the write routes drop tasks by id and masters all at once, locally and on
+ * the event bus for the other App instances.
+ */
+public class ValidatorCache {
+
+    /** The two validators of one row. */
+    public static final class Formats {
+        public final SchemaValidator input;
+        public final SchemaValidator output;
+
+        Formats(SchemaValidator input, SchemaValidator output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        /**
+         * Compiles the formats of a row or request body.
+         *
+         * @throws io.vertx.core.json.DecodeException or IllegalArgumentException naming the broken format
+         */
+        public static Formats of(JsonObject row) {
+            return new Formats(compile(row, "input_format"), compile(row, "output_format"));
+        }
+
+        private static SchemaValidator compile(JsonObject row, String column) {
+            try {
+                return SchemaValidator.compile(row.getValue(column));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(column + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private final Cache<Long, Formats> tasks;
+    private final Cache<Long, Formats> masters;
+
+    public ValidatorCache(JsonObject config) {
+        long maxEntries = config.getLong("max_entries", 10000L);
+        tasks = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+        masters = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+    }
+
+    /** Null when the task's formats are not compiled yet. */
+    public Formats getTask(long id) {
+        return tasks.getIfPresent(id);
+    }
+
+    /** The cached formats of the task, compiled from `row` on a miss. */
+    public Formats task(long id, JsonObject row) {
+        Formats formats = tasks.getIfPresent(id);
+        if (formats == null) {
+            formats = Formats.of(row);
+            tasks.put(id, formats);
+        }
+        return formats;
+    }
+
+    public Formats getMaster(long id) {
+        return masters.getIfPresent(id);
+    }
+
+    public Formats master(long id, JsonObject row) {
+        Formats formats = masters.getIfPresent(id);
+        if (formats == null) {
+            formats = Formats.of(row);
+            masters.put(id, formats);
+        }
+        return formats;
+    }
+
+    public void invalidateTask(long id) {
+        tasks.invalidate(id);
+    }
+
+    public void invalidateMasters() {
+        masters.invalidateAll();
+    }
+
+    /** Publishes hit/miss/eviction/size meters for both caches, tagged with the App instance. */
+    public void bindTo(MeterRegistry registry, String instance) {
+        GuavaCacheMetrics.monitor(registry, tasks, "validators_tasks", "instance", instance);
+        GuavaCacheMetrics.monitor(registry, masters, "validators_masters", "instance", instance);
+    }
+}
@@ -0,0 +1,566 @@
+package backend;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.micrometer.backends.BackendRegistries;
+import io.vertx.sqlclient.DatabaseException;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind for PUT/PATCH /task/{id} without If-Match, on when write_behind.enabled is set.
+ *
+ * The updates are spread over write_behind.stripes instances of this verticle by task id, so
+ * all updates of one task go to the same stripe, in order, and a stripe's state is only
+ * touched from its own event loop, without locks. A stripe merges the updates of each task
+ * (later values of a column win) and every window_ms writes what it holds in one transaction,
+ * with one batched UPDATE per set of changed columns, so a task written a hundred times in a
+ * window costs one row update.
+ *
+ * An update is answered once it is in the stripe's journal on disk: each update is appended
+ * to the current journal file and the file is synced once for all updates that came in
+ * within sync_ms. A flush starts a new journal file and deletes the older ones once its
+ * transaction has committed. Before the stripes start, the files a crashed run left behind,
+ * of any stripe, are written to the database by deploy, so an acknowledged update survives a
+ * crash, a change of write_behind.stripes and write-behind being turned off. On undeploy the stripe stops taking
+ * updates and writes what it holds. When the database cannot keep up, a stripe holding
+ * max_pending tasks refuses new ones with 503.
+ *
+ * Column values are checked against the schema before an update is answered. Should a
+ * window's transaction still fail, its updates are written one at a time and one the
+ * database refuses for its values is logged and dropped, so it cannot hold up the stripe.
+ *
+ * Until a flush, reads return the task as it was, and the TASKS_CHANGED and change events
+ * are sent after the flush. A conditional write goes straight to the database and may be
+ * overtaken by buffered updates of the same task. One process per journal_dir.
+ */
+public class WriteBehind extends AbstractVerticle {
+
+    private static final Logger LOG = Logger.getLogger(WriteBehind.class.getName());
+
+    /** Stripe k takes updates, {"id": 12, "changes": {...}, "event": {...}}, at ADDRESS + k. */
+    public static final String ADDRESS = "tasks.write-behind.";
+
+    // journal files of every stripe, write-behind-<stripe>-<sequence>.log
+    private static final String JOURNAL = "write-behind-\\d+-\\d+\\.log";
+
+    // an open journal file, file is null for those left by an earlier run
+    private static final class Segment {
+        final String path;
+        final AsyncFile file;
+        // completes once nothing is being written to or synced in the file any more
+        Future<Void> settled = Future.succeededFuture();
+        // its updates are in the database, it needs no sync any more
+        boolean discarded;
+        // syncs under way, its updates are only in `pending` once they are done
+        int syncing;
+
+        Segment(String path, AsyncFile file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        void settle(Future<?> sync) {
+            settled = Future.join(settled, sync).<Void>mapEmpty().otherwiseEmpty();
+        }
+    }
+
+    private final int stripe;
+    // the journal files replayed on start: the stripe's own, or every stripe's when draining
+    private final String replays;
+
+    private TaskRepository repository;
+    private String dir;
+    private long syncMs;
+    private int maxPending;
+    private MessageConsumer<JsonObject> consumer;
+    private long flushTimer = -1;
+
+    // merged updates by task id, in arrival order
+    private Long2ObjectLinkedOpenHashMap<JsonObject> pending = new Long2ObjectLinkedOpenHashMap<>();
+    private Future<Void> flushing;
+
+    // journal: `current` takes appends, `next` is opened ahead for the next flush, `sealed`
+    // are older files whose updates are not in the database yet
+    private Segment current;
+    private Segment next;
+    private final List<Segment> sealed = new ArrayList<>();
+    private long sequence;
+    private boolean opening;
+
+    // updates appended since the last sync, answered once it is done
+    private List<Message<JsonObject>> unsynced = new ArrayList<>();
+    private List<Future<Void>> unsyncedWrites = new ArrayList<>();
+    private Set<Segment> unsyncedSegments = new LinkedHashSet<>();
+    private long syncTimer = -1;
+    // completes once the last sync is done and its updates are in `pending`, syncs finish in order
+    private Future<Void> syncing = Future.succeededFuture();
+
+    private Timer flushTime;
+    private Counter written;
+    private Counter rejected;
+    private Counter dropped;
+    private Gauge pendingGauge;
+
+    public WriteBehind(int stripe) {
+        this(stripe, "write-behind-" + stripe + "-\\d+\\.log");
+    }
+
+    private WriteBehind(int stripe, String replays) {
+        this.stripe = stripe;
+        this.replays = replays;
+    }
+
+    /** Number of stripes, 0 when write-behind is off. */
+    public static int stripes(JsonObject config) {
+        JsonObject writeBehind = config.getJsonObject("write_behind", new JsonObject());
+        return writeBehind.getBoolean("enabled", false) ? Math.max(1, writeBehind.getInteger("stripes", 4)) : 0;
+    }
+
+    /** Where the updates of task `id` go. */
+    public static String address(long id, int stripes) {
+        return ADDRESS + Math.floorMod(id, stripes);
+    }
+
+    /**
+     * Deploys every stripe, they must be up before the App instances send them updates; the
+     * deployment ids. Journal files left by an earlier run are written to the database first,
+     * also with write-behind off now or a different number of stripes, and if that fails
+     * nothing may start, as those updates were already acknowledged.
+     */
+    public static Future<List<String>> deploy(Vertx vertx, JsonObject config) {
+        return drain(vertx, config).compose(v -> {
+            List<Future<String>> deployed = new ArrayList<>();
+            for (int i = 0; i < stripes(config); i++) {
+                deployed.add(vertx.deployVerticle(new WriteBehind(i), new DeploymentOptions().setConfig(config)));
+            }
+            return Future.all(deployed).map(all -> all.<String>list());
+        });
+    }
+
+    // one stripe takes up every journal file and stops again, which writes them and deletes them;
+    // the stripes deployed after it only read their own files, the others' may be in use by then
+    private static Future<Void> drain(Vertx vertx, JsonObject config) {
+        String dir = journalDir(config.getJsonObject("write_behind", new JsonObject()));
+        FileSystem fs = vertx.fileSystem();
+        return fs.exists(dir)
+        .compose(exists -> exists ? fs.readDir(dir, JOURNAL) : Future.succeededFuture(List.<String>of()))
+        .compose(files -> {
+            if (files.isEmpty()) {
+                return Future.succeededFuture();
+            }
+            LOG.warning("writing the " + files.size() + " write-behind journal files left in " + dir);
+            return vertx.deployVerticle(new WriteBehind(0, JOURNAL), new DeploymentOptions().setConfig(config))
+            .compose(vertx::undeploy)
+            .compose(v -> fs.readDir(dir, JOURNAL))
+            .compose(left -> left.isEmpty() ? Future.<Void>succeededFuture()
+                : Future.failedFuture(new IllegalStateException("could not write the write-behind journal in " + dir)));
+        });
+    }
+
+    private static String journalDir(JsonObject config) {
+        return config.getString("journal_dir", "data/write-behind");
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        JsonObject config = config().getJsonObject("write_behind", new JsonObject());
+        long windowMs = config.getLong("window_ms", 50L);
+        syncMs = Math.max(1, config.getLong("sync_ms", 2L));
+        maxPending = config.getInteger("max_pending", 10000);
+        dir = journalDir(config);
+        repository = new TaskRepository(TaskRepository.createPool(vertx, config().getJsonObject("db", new JsonObject())));
+
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        if (registry != null) {
+            Tags tags = Tags.of("stripe", String.valueOf(stripe));
+            // removed on stop, a later stripe with the same number (see drain) brings its own
+            pendingGauge = Gauge.builder("write_behind_pending", this, w -> w.pending.size()).tags(tags).register(registry);
+            flushTime = Timer.builder("write_behind_flush").tags(tags).publishPercentileHistogram().register(registry);
+            written = registry.counter("write_behind_updates_written", tags);
+            rejected = registry.counter("write_behind_updates_rejected", tags);
+            dropped = registry.counter("write_behind_updates_dropped", tags);
+        }
+
+        FileSystem fs = vertx.fileSystem();
+        fs.mkdirs(dir)
+        .compose(v -> fs.readDir(dir, replays))
+        .compose(this::replay)
+        .compose(v -> open())
+        .compose(segment -> {
+            current = segment;
+            return open();
+        })
+        .onComplete(res -> {
+            if (res.failed()) {
+                startPromise.fail(res.cause());
+                return;
+            }
+            next = res.result();
+            consumer = vertx.eventBus().consumer(ADDRESS + stripe, this::offer);
+            flushTimer = vertx.setPeriodic(windowMs, id -> tick());
+            if (!pending.isEmpty()) {
+                LOG.info("write-behind stripe " + stripe + " replayed " + pending.size() + " updates from its journal");
+            }
+            startPromise.complete();
+        });
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        vertx.cancelTimer(flushTimer);
+        Future<Void> unregistered = consumer == null ? Future.succeededFuture() : consumer.unregister();
+        unregistered
+        .compose(v -> {
+            if (syncTimer >= 0) {
+                vertx.cancelTimer(syncTimer);
+                sync();
+            }
+            return syncing;
+        })
+        .compose(v -> flushing == null ? Future.succeededFuture() : flushing.otherwiseEmpty())
+        .compose(v -> {
+            // nothing comes in any more, so the last write covers every journal file
+            List<Segment> covered = new ArrayList<>(sealed);
+            covered.add(current);
+            Long2ObjectLinkedOpenHashMap<JsonObject> batch = pending;
+            pending = new Long2ObjectLinkedOpenHashMap<>();
+            return write(batch, covered);
+        })
+        .onComplete(res -> {
+            if (res.failed()) {
+                // the journal stays and is replayed on the next start
+                LOG.log(Level.SEVERE, "write-behind stripe " + stripe + " stopped with " + pending.size() + " updates only in its journal", res.cause());
+                sealed.add(current);
+                for (Segment segment : sealed) {
+                    close(segment);
+                }
+            }
+            Future<Void> discarded = next == null ? Future.succeededFuture() : discard(next).otherwiseEmpty();
+            discarded.onComplete(v -> {
+                if (pendingGauge != null) {
+                    BackendRegistries.getDefaultNow().remove(pendingGauge);
+                }
+                stopPromise.complete();
+            });
+        });
+    }
+
+    // ======== buffer ======== //
+
+    private void offer(Message<JsonObject> msg) {
+        JsonObject update = msg.body();
+        long id = update.getLong("id");
+        if (!pending.containsKey(id) && pending.size() + unsynced.size() >= maxPending) {
+            if (rejected != null) {
+                rejected.increment();
+            }
+            msg.fail(503, "write-behind buffer is full");
+            return;
+        }
+
+        // it goes into `pending` once it is synced, an update answered with an error is never written
+        Segment segment = current;
+        Future<Void> appended = segment.file.write(update.toBuffer().appendString("\n"));
+        segment.settle(appended);
+        unsynced.add(msg);
+        unsyncedWrites.add(appended);
+        if (unsyncedSegments.add(segment)) {
+            segment.syncing++;
+        }
+        if (syncTimer < 0) {
+            syncTimer = vertx.setTimer(syncMs, t -> {
+                syncTimer = -1;
+                sync();
+            });
+        }
+    }
+
+    // one sync per journal file for all updates appended since the last one, then they are buffered and answered
+    private void sync() {
+        List<Message<JsonObject>> replies = unsynced;
+        List<Future<Void>> writes = unsyncedWrites;
+        Set<Segment> segments = unsyncedSegments;
+        unsynced = new ArrayList<>();
+        unsyncedWrites = new ArrayList<>();
+        unsyncedSegments = new LinkedHashSet<>();
+
+        Future<Void> synced = Future.all(writes).compose(v -> {
+            List<Future<Void>> flushes = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (!segment.discarded) {
+                    flushes.add(segment.file.flush());
+                }
+            }
+            return Future.all(flushes);
+        }).mapEmpty();
+        for (Segment segment : segments) {
+            segment.settle(synced);
+        }
+        syncing = syncing.transform(v -> synced).onComplete(res -> {
+            if (res.failed()) {
+                LOG.log(Level.SEVERE, "could not write the write-behind journal", res.cause());
+            }
+            for (Message<JsonObject> msg : replies) {
+                if (res.succeeded()) {
+                    JsonObject update = msg.body();
+                    long id = update.getLong("id");
+                    pending.put(id, merge(pending.get(id), update));
+                    msg.reply(null);
+                } else {
+                    msg.fail(500, "could not journal the update");
+                }
+            }
+            for (Segment segment : segments) {
+                segment.syncing--;
+            }
+        }).otherwiseEmpty();
+    }
+
+    // later values of a column win, the event keeps where the task was before the first of the merged updates
+    static JsonObject merge(JsonObject earlier, JsonObject update) {
+        if (earlier == null) {
+            return update;
+        }
+        JsonObject merged = new JsonObject()
+            .put("id", update.getValue("id"))
+            .put("changes", earlier.getJsonObject("changes").copy().mergeIn(update.getJsonObject("changes")));
+        JsonObject event = update.getJsonObject("event");
+        JsonObject first = earlier.getJsonObject("event");
+        if (event != null && first != null) {
+            event = event.copy();
+            long from = first.getLong("previous_parent_id", first.getLong("parent_id"));
+            if (from != event.getLong("parent_id")) {
+                event.put("previous_parent_id", from);
+            } else {
+                event.remove("previous_parent_id");
+            }
+        }
+        return event == null ? merged : merged.put("event", event);
+    }
+
+    // ======== flush ======== //
+
+    private void tick() {
+        if (next == null) {
+            // the file for the next flush could not be opened last time
+            if (!opening) {
+                openNext();
+            }
+            return;
+        }
+        if (flushing != null || pending.isEmpty()) {
+            return;
+        }
+        Long2ObjectLinkedOpenHashMap<JsonObject> batch = pending;
+        pending = new Long2ObjectLinkedOpenHashMap<>();
+        // updates from now on go to the next file, the ones up to here can go once the batch is in;
+        // a file with updates still being synced holds some that are not in the batch and waits for a later one
+        sealed.add(current);
+        current = next;
+        next = null;
+        openNext();
+        List<Segment> covered = new ArrayList<>();
+        for (Segment segment : sealed) {
+            if (segment.syncing == 0) {
+                covered.add(segment);
+            }
+        }
+        flushing = write(batch, covered).onComplete(res -> flushing = null);
+    }
+
+    // writes the batch and deletes the journal files it covers; what could not be written goes back in front of newer updates
+    private Future<Void> write(Long2ObjectLinkedOpenHashMap<JsonObject> batch, List<Segment> covered) {
+        long started = System.nanoTime();
+        Long2ObjectLinkedOpenHashMap<JsonObject> done = new Long2ObjectLinkedOpenHashMap<>();
+        return repository.patchTasks(batch.values())
+        .onSuccess(v -> {
+            done.putAll(batch);
+            batch.clear();
+        })
+        .recover(err -> {
+            if (batch.size() > 1) {
+                LOG.log(Level.WARNING, "could not write " + batch.size() + " buffered task updates together, writing them one by one", err);
+            }
+            return writeEach(batch, done);
+        })
+        .transform(res -> {
+            if (flushTime != null && !done.isEmpty()) {
+                flushTime.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+            if (written != null) {
+                written.increment(done.size());
+            }
+            announce(done);
+            if (res.failed()) {
+                LOG.log(Level.WARNING, "could not write " + batch.size() + " buffered task updates, retrying", res.cause());
+                for (Long2ObjectMap.Entry<JsonObject> newer : pending.long2ObjectEntrySet()) {
+                    batch.put(newer.getLongKey(), merge(batch.get(newer.getLongKey()), newer.getValue()));
+                }
+                pending = batch;
+                return Future.failedFuture(res.cause());
+            }
+            sealed.removeAll(covered);
+            List<Future<Void>> discarded = new ArrayList<>();
+            for (Segment segment : covered) {
+                discarded.add(discard(segment));
+            }
+            return Future.join(discarded).<Void>mapEmpty().otherwiseEmpty();
+        });
+    }
+
+    // one transaction per update, moving each out of `batch` once it is in `done` or dropped. An
+    // update the database refuses for its values would fail every retry and hold up the stripe, it
+    // is logged and dropped; any other failure stops here and leaves the rest in `batch`.
+    private Future<Void> writeEach(Long2ObjectLinkedOpenHashMap<JsonObject> batch, Long2ObjectLinkedOpenHashMap<JsonObject> done) {
+        Future<Void> chain = Future.succeededFuture();
+        for (JsonObject update : new ArrayList<>(batch.values())) {
+            long id = update.getLong("id");
+            chain = chain.compose(v -> repository.patchTasks(List.of(update)).transform(res -> {
+                if (res.succeeded()) {
+                    done.put(id, batch.remove(id));
+                    return Future.succeededFuture();
+                }
+                if (!refused(res.cause())) {
+                    return Future.failedFuture(res.cause());
+                }
+                batch.remove(id);
+                if (dropped != null) {
+                    dropped.increment();
+                }
+                LOG.log(Level.SEVERE, "dropping buffered task update the database refuses: " + update.encode(), res.cause());
+                return Future.succeededFuture();
+            }));
+        }
+        return chain;
+    }
+
+    // a data error (SQLSTATE class 22 or 23, MySQL's incorrect value errors) rather than a lost connection or a timeout
+    static boolean refused(Throwable err) {
+        for (Throwable cause = err; cause != null; cause = cause.getCause()) {
+            String state = null;
+            if (cause instanceof DatabaseException) {
+                int code = ((DatabaseException) cause).getErrorCode();
+                if (code == 1366 || code == 1292) {
+                    return true;
+                }
+                state = ((DatabaseException) cause).getSqlState();
+            } else if (cause instanceof SQLException) {
+                state = ((SQLException) cause).getSQLState();
+            }
+            if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // what App#updateTask does after a direct write: other instances and the scheduler re-read the tasks, subscribers hear of them
+    private void announce(Long2ObjectLinkedOpenHashMap<JsonObject> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        JsonArray ids = new JsonArray();
+        JsonArray events = new JsonArray();
+        for (JsonObject update : batch.values()) {
+            ids.add(update.getLong("id"));
+            if (update.getJsonObject("event") != null) {
+                events.add(update.getJsonObject("event"));
+            }
+        }
+        vertx.eventBus().publish(App.TASKS_CHANGED_ADDRESS, ids);
+        if (!events.isEmpty()) {
+            vertx.eventBus().publish(TaskEvents.ADDRESS, events);
+        }
+    }
+
+    // ======== journal ======== //
+
+    private Future<Segment> open() {
+        String path = Paths.get(dir, "write-behind-" + stripe + "-" + (++sequence) + ".log").toString();
+        return vertx.fileSystem().open(path, new OpenOptions().setCreateNew(true).setWrite(true))
+            .map(file -> new Segment(path, file));
+    }
+
+    private void openNext() {
+        opening = true;
+        open().onComplete(res -> {
+            opening = false;
+            if (res.succeeded()) {
+                next = res.result();
+            } else {
+                LOG.log(Level.SEVERE, "could not open a write-behind journal file", res.cause());
+            }
+        });
+    }
+
+    // files of an earlier run in the order they were written, see drain; a line cut short by a crash was never answered and is skipped
+    private Future<Void> replay(List<String> paths) {
+        List<String> ordered = new ArrayList<>(paths);
+        ordered.sort(Comparator.comparingLong(WriteBehind::sequenceOf));
+        Future<Void> replayed = Future.succeededFuture();
+        for (String path : ordered) {
+            sequence = Math.max(sequence, sequenceOf(path));
+            replayed = replayed.compose(v -> vertx.fileSystem().readFile(path)).map(content -> {
+                for (String line : content.toString().split("\n")) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        JsonObject update = new JsonObject(line);
+                        long id = update.getLong("id");
+                        pending.put(id, merge(pending.get(id), update));
+                    } catch (DecodeException | ClassCastException | NullPointerException e) {
+                        LOG.warning("skipping a broken line in " + path);
+                    }
+                }
+                sealed.add(new Segment(path, null));
+                return null;
+            });
+        }
+        return replayed;
+    }
+
+    private static long sequenceOf(String path) {
+        String name = Paths.get(path).getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".log".length()));
+    }
+
+    private Future<Void> close(Segment segment) {
+        return segment.settled.compose(v -> segment.file == null ? Future.succeededFuture() : segment.file.close());
+    }
+
+    private Future<Void> discard(Segment segment) {
+        segment.discarded = true;
+        return close(segment)
+        .compose(v -> vertx.fileSystem().delete(segment.path))
+        .onFailure(err -> LOG.log(Level.WARNING, "could not delete " + segment.path, err));
+    }
+}
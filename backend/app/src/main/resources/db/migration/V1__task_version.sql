@@ -0,0 +1,2 @@
+-- Row version for optimistic concurrency on PUT/PATCH /task/{id} and ETags on GET /task/{id}.
+alter table tasks add column version int not null default 0;
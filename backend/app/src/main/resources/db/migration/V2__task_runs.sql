@@ -0,0 +1,11 @@
+-- one row per scheduled call, written in batches by TaskScheduler
+create table if not exists task_runs (
+    id bigint not null auto_increment primary key,
+    task_id bigint not null,
+    started_at bigint not null,
+    duration_ms int,
+    status_code int,
+    error varchar(255)
+);
+
+create index task_runs_task on task_runs (task_id, started_at);
@@ -0,0 +1,9 @@
+-- Indexes for the listing filters (TaskQuery). Each ends in id, so a keyset page
+-- (... and id > ? order by id limit ?) filtered on the leading columns of one of them is a
+-- range read of it: parent_id, service_id, or is_active together with task_type. The
+-- task_type indexes of V4 cover task_type alone, is_active alone is a filtered scan.
+create index tasks_parent on tasks (parent_id, id);
+create index tasks_service on tasks (service_id, id);
+create index tasks_active_type on tasks (is_active, task_type, id);
+create index masterTasks_service on masterTasks (service_id, id);
+create index masterTasks_active_type on masterTasks (is_active, task_type, id);
@@ -0,0 +1,5 @@
+-- A task_type filter on its own, which the (is_active, task_type, id) indexes of V3 cannot
+-- serve. is_active has two values, a page filtered only on it reads the primary key in id
+-- order and skips the other rows.
+create index tasks_type on tasks (task_type, id);
+create index masterTasks_type on masterTasks (task_type, id);
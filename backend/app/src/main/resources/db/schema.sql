@@ -0,0 +1,52 @@
+-- Tables behind the API. Valid for MySQL and for H2 in MySQL mode (tests and load test).
+
+create table if not exists masterTasks (
+    id bigint not null auto_increment primary key,
+    name varchar(255),
+    slug varchar(255),
+    description text,
+    help_text text,
+    input_format text,
+    output_format text,
+    dependent_task_slug varchar(255),
+    repeats_on int,
+    bulk_input tinyint,
+    input_http_method int,
+    api_endpoint varchar(1024),
+    api_timeout_in_ms int,
+    response_type int,
+    is_json_input_needed tinyint,
+    task_type int,
+    is_active tinyint,
+    is_optional tinyint,
+    eta text,
+    service_id int,
+    email_list text,
+    action varchar(255)
+);
+
+create table if not exists tasks (
+    id bigint not null auto_increment primary key,
+    name varchar(255),
+    slug varchar(255),
+    description text,
+    help_text text,
+    input_format text,
+    output_format text,
+    dependent_task_slug varchar(255),
+    repeats_on int,
+    bulk_input tinyint,
+    input_http_method int,
+    api_endpoint varchar(1024),
+    api_timeout_in_ms int,
+    response_type int,
+    is_json_input_needed tinyint,
+    task_type int,
+    is_active tinyint,
+    is_optional tinyint,
+    eta text,
+    service_id int,
+    email_list text,
+    action varchar(255),
+    parent_id bigint
+);
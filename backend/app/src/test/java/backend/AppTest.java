@@ -3,12 +3,500 @@
  */
 package backend;
 
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.sqlclient.Pool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
+/**
+ * Drives the HTTP routes of a deployed App backed by H2 in MySQL mode.
+ */
 class AppTest {
-    @Test void appHasAGreeting() {
-        App classUnderTest = new App();
-        assertNotNull(classUnderTest.getGreeting(), "app should have a greeting");
+
+    private static Vertx vertx;
+    private static WebClient client;
+    private static int port;
+    // answers bulk input batches with the number of records received
+    private static int stubPort;
+
+    @BeforeAll
+    static void deploy() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        vertx = Vertx.vertx();
+        SchemaMigrator migrator = new SchemaMigrator(vertx, TaskRepository.createPool(vertx, config(port).getJsonObject("db")));
+        await(migrator.createSchema().compose(v -> migrator.migrate()));
+        await(vertx.deployVerticle(App::new, new DeploymentOptions().setConfig(config(port))));
+        client = WebClient.create(vertx, new WebClientOptions().setDefaultPort(port));
+        stubPort = await(vertx.createHttpServer().requestHandler(request -> request.body().onSuccess(body ->
+            request.response().end(new JsonObject().put("received", body.toJsonArray().size()).toBuffer()))).listen(0)).actualPort();
+    }
+
+    @AfterAll
+    static void close() throws Exception {
+        await(vertx.close());
+    }
+
+    static JsonObject config(int port) {
+        return new JsonObject()
+            .put("http", new JsonObject().put("port", port).put("max_body_bytes", 64 * 1024).put("max_batch_body_bytes", 256 * 1024))
+            .put("db", new JsonObject()
+                .put("jdbc_url", "jdbc:h2:mem:apptest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1")
+                .put("driver_class", "org.h2.Driver")
+                .put("user", "sa")
+                .put("password", "")
+                .put("max_pool_size", 4))
+            .put("bulk", new JsonObject().put("output_dir", "build/bulk-test").put("max_record_bytes", 1024))
+            .put("events", new JsonObject().put("coalesce_ms", 300));
+    }
+
+    static JsonObject task(String slug, long parentId) {
+        return new JsonObject()
+            .put("name", "Task " + slug)
+            .put("slug", slug)
+            .put("description", "it's a \"quoted\" description")
+            .put("input_format", new JsonObject().put("customer_id", "number"))
+            .put("output_format", new JsonObject().put("invoice", "string"))
+            .put("eta", new JsonObject().put("hours", 2))
+            .put("repeats_on", 0)
+            .put("is_active", 1)
+            .put("service_id", 7)
+            .put("parent_id", parentId);
+    }
+
+    @Test void masterCanBeCreatedAndRead() throws Exception {
+        HttpResponse<Buffer> created = await(client.post("/master").sendJsonObject(task("invoice-master", 0)));
+        assertEquals(200, created.statusCode());
+
+        JsonArray masters = await(client.get("/master").send()).bodyAsJsonArray();
+        assertFalse(masters.isEmpty());
+        JsonObject master = masters.getJsonObject(masters.size() - 1);
+        assertEquals("invoice-master", master.getString("slug"));
+        assertEquals("number", master.getJsonObject("input_format").getString("customer_id"));
+
+        JsonArray byId = await(client.get("/master/" + master.getLong("id")).send()).bodyAsJsonArray();
+        assertEquals(master, byId.getJsonObject(0));
+    }
+
+    @Test void taskCanBeCreatedUpdatedAndDeleted() throws Exception {
+        assertEquals(200, await(client.post("/task").sendJsonObject(task("send-mail", 100))).statusCode());
+
+        JsonArray children = await(client.get("/master/task/100").send()).bodyAsJsonArray();
+        assertEquals(1, children.size());
+        long id = children.getJsonObject(0).getLong("id");
+        assertEquals("it's a \"quoted\" description", children.getJsonObject(0).getString("description"));
+
+        JsonObject changed = task("send-mail", 100).put("name", "Send reminder mail");
+        assertEquals(200, await(client.put("/task/" + id).sendJsonObject(changed)).statusCode());
+        JsonObject stored = await(client.get("/task/" + id).send()).bodyAsJsonArray().getJsonObject(0);
+        assertEquals("Send reminder mail", stored.getString("name"));
+        assertEquals(2, stored.getJsonObject("eta").getInteger("hours"));
+
+        // stored as it came, and read back as a string
+        assertEquals(200, await(client.put("/task/" + id).sendJsonObject(changed.put("eta", "2h"))).statusCode());
+        assertEquals("2h", new JsonArray(await(client.get("/task/" + id).send()).bodyAsString()).getJsonObject(0).getString("eta"));
+        assertEquals("2h", await(client.get("/master/task/100").send()).bodyAsJsonArray().getJsonObject(0).getString("eta"));
+
+        assertEquals(200, await(client.delete("/task/" + id).send()).statusCode());
+        assertTrue(await(client.get("/task/" + id).send()).bodyAsJsonArray().isEmpty());
+    }
+
+    @Test void batchInsertReportsEveryItem() throws Exception {
+        JsonArray items = new JsonArray()
+            .add(task("a", 200))
+            .add("not a task")
+            .add(task("b", 200));
+        HttpResponse<Buffer> response = await(client.post("/task/batch").addQueryParam("batch_size", "1").sendJson(items));
+        assertEquals(200, response.statusCode());
+
+        JsonArray results = response.bodyAsJsonArray();
+        assertEquals(3, results.size());
+        assertNotNull(results.getJsonObject(0).getValue("id"));
+        assertEquals("not a JSON object", results.getJsonObject(1).getString("error"));
+        assertEquals(2, await(client.get("/master/task/200").send()).bodyAsJsonArray().size());
+    }
+
+    @Test void childTasksArePaginatedById() throws Exception {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            ndjson.append(task("page-" + i, 300).encode()).append('\n');
+        }
+        HttpResponse<Buffer> created = await(client.post("/task/batch")
+            .putHeader("Content-Type", "application/x-ndjson")
+            .sendBuffer(Buffer.buffer(ndjson.toString())));
+        assertEquals(5, created.bodyAsJsonArray().size());
+
+        HttpResponse<Buffer> first = await(client.get("/master/task/300?limit=3").send());
+        assertEquals(3, first.bodyAsJsonArray().size());
+        String next = first.getHeader("X-Next-After-Id");
+        assertNotNull(next);
+
+        HttpResponse<Buffer> second = await(client.get("/master/task/300?limit=3&after_id=" + next).send());
+        assertEquals(2, second.bodyAsJsonArray().size());
+        assertNull(second.getHeader("X-Next-After-Id"));
+    }
+
+    @Test void patchWritesOnlyTheFieldsSentAndChecksTheVersion() throws Exception {
+        await(client.post("/task").sendJsonObject(task("patch-me", 400)));
+        long id = await(client.get("/master/task/400").send()).bodyAsJsonArray().getJsonObject(0).getLong("id");
+
+        HttpResponse<Buffer> read = await(client.get("/task/" + id).send());
+        String etag = read.getHeader("ETag");
+        assertEquals("\"0\"", etag);
+        assertEquals(304, await(client.get("/task/" + id).putHeader("If-None-Match", etag).send()).statusCode());
+
+        HttpResponse<Buffer> patched = await(client.patch("/task/" + id)
+            .putHeader("If-Match", etag)
+            .sendJsonObject(new JsonObject().put("name", "Patched")));
+        assertEquals(200, patched.statusCode());
+        assertEquals("\"1\"", patched.getHeader("ETag"));
+
+        JsonObject stored = await(client.get("/task/" + id).send()).bodyAsJsonArray().getJsonObject(0);
+        assertEquals("Patched", stored.getString("name"));
+        assertEquals("patch-me", stored.getString("slug"));
+        assertEquals("number", stored.getJsonObject("input_format").getString("customer_id"));
+
+        HttpResponse<Buffer> stale = await(client.patch("/task/" + id)
+            .putHeader("If-Match", etag)
+            .sendJsonObject(new JsonObject().put("name", "Lost update")));
+        assertEquals(412, stale.statusCode());
+        assertEquals(200, await(client.get("/task/" + id).putHeader("If-None-Match", etag).send()).statusCode());
+    }
+
+    @Test void dependencyGraphIsOrderedAndCyclesAreRefused() throws Exception {
+        await(client.post("/task").sendJsonObject(task("deploy", 500).put("dependent_task_slug", "build")));
+        await(client.post("/task").sendJsonObject(task("build", 500).put("dependent_task_slug", "fetch")));
+        await(client.post("/task").sendJsonObject(task("fetch", 500)));
+
+        HttpResponse<Buffer> dag = await(client.get("/master/task/500/dag").send());
+        assertEquals(200, dag.statusCode());
+        JsonArray order = dag.bodyAsJsonObject().getJsonArray("tasks");
+        assertEquals("fetch", order.getJsonObject(0).getString("slug"));
+        assertEquals("build", order.getJsonObject(1).getString("slug"));
+        assertEquals("deploy", order.getJsonObject(2).getString("slug"));
+        long fetchId = order.getJsonObject(0).getLong("id");
+        assertEquals(fetchId, order.getJsonObject(1).getLong("depends_on"));
+
+        JsonArray ready = await(client.get("/master/task/500/ready?completed=" + fetchId).send()).bodyAsJsonArray();
+        assertEquals(1, ready.size());
+        assertEquals("build", ready.getJsonObject(0).getString("slug"));
+
+        long buildId = order.getJsonObject(1).getLong("id");
+        HttpResponse<Buffer> cycle = await(client.patch("/task/" + fetchId)
+            .sendJsonObject(new JsonObject().put("dependent_task_slug", "deploy")));
+        assertEquals(409, cycle.statusCode());
+        assertEquals(409, await(client.post("/task").sendJsonObject(task("fetch", 500).put("dependent_task_slug", "deploy"))).statusCode());
+
+        assertEquals(200, await(client.delete("/task/" + buildId).send()).statusCode());
+        JsonArray afterDelete = await(client.get("/master/task/500/dag").send()).bodyAsJsonObject().getJsonArray("tasks");
+        assertEquals(2, afterDelete.size());
+
+        // a batch item is checked against the indexed tasks and the items ahead of it
+        await(client.post("/task").sendJsonObject(task("p", 501).put("dependent_task_slug", "q")));
+        JsonArray results = await(client.post("/task/batch").addQueryParam("batch_size", "1").sendJson(new JsonArray()
+            .add(task("q", 501).put("dependent_task_slug", "p"))
+            .add(task("r", 501).put("dependent_task_slug", "s"))
+            .add(task("s", 501).put("dependent_task_slug", "r"))
+            .add(task("t", 501).put("dependent_task_slug", "r")))).bodyAsJsonArray();
+        assertEquals(409, results.getJsonObject(0).getInteger("status"));
+        assertNotNull(results.getJsonObject(1).getValue("id"));
+        assertEquals("dependency cycle", results.getJsonObject(2).getString("error"));
+        assertNotNull(results.getJsonObject(3).getValue("id"));
+        assertEquals(3, await(client.get("/master/task/501").send()).bodyAsJsonArray().size());
+
+        // "null" is no slug, the two do not depend on each other
+        assertEquals(200, await(client.post("/task").sendJsonObject(task("null", 502).put("dependent_task_slug", "b"))).statusCode());
+        assertEquals(200, await(client.post("/task").sendJsonObject(task("b", 502).put("dependent_task_slug", "null"))).statusCode());
+    }
+
+    @Test void bulkInputIsValidatedBatchedAndReported() throws Exception {
+        JsonObject bulkTask = task("bulk", 600)
+            .put("bulk_input", 1)
+            .put("api_endpoint", "http://localhost:" + stubPort + "/records");
+        await(client.post("/task").sendJsonObject(bulkTask));
+        long id = await(client.get("/master/task/600").send()).bodyAsJsonArray().getJsonObject(0).getLong("id");
+
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 250; i++) {
+            ndjson.append(new JsonObject().put("customer_id", i).encode()).append('\n');
+        }
+        ndjson.append("{\"customer_id\": \"not a number\"}\n").append("not json\n");
+        // longer than bulk.max_record_bytes, also when it arrives in several pieces
+        ndjson.append(new JsonObject().put("customer_id", 1).put("note", "x".repeat(64 * 1024)).encode()).append('\n');
+        ndjson.append(new JsonObject().put("customer_id", 250).put("note", "x".repeat(2000)).encode()).append('\n');
+        ndjson.append(new JsonObject().put("customer_id", 251).encode()).append('\n');
+
+        HttpResponse<Buffer> response = await(client.post("/task/" + id + "/bulk?batch_size=100&parallelism=2")
+            .putHeader("Content-Type", "application/x-ndjson")
+            .sendBuffer(Buffer.buffer(ndjson.toString())));
+        assertEquals(200, response.statusCode());
+        JsonObject summary = response.bodyAsJsonObject();
+        assertEquals(255, summary.getLong("records"));
+        assertEquals(4, summary.getLong("invalid"));
+        assertEquals(3, summary.getLong("batches"));
+        assertEquals(251, summary.getLong("sent"));
+        // the stub's answers do not have the invoice field of output_format
+        assertEquals(3, summary.getLong("invalid_results"));
+
+        String output = vertx.fileSystem().readFileBlocking(summary.getString("output")).toString();
+        assertEquals(7, output.split("\n").length);
+        assertTrue(output.contains("record is longer than 1024 bytes"));
+        assertTrue(output.contains("\"received\":100"));
+
+        HttpResponse<Buffer> csv = await(client.post("/task/" + id + "/bulk")
+            .putHeader("Content-Type", "text/csv")
+            .sendBuffer(Buffer.buffer("customer_id,note\n7,\"a, quoted\"\nx,bad\n")));
+        assertEquals(1, csv.bodyAsJsonObject().getLong("sent"));
+        assertEquals(1, csv.bodyAsJsonObject().getLong("invalid"));
+
+        assertEquals(409, await(client.post("/task/" + (id - 1) + "/bulk").sendBuffer(Buffer.buffer("{}"))).statusCode());
+    }
+
+    @Test void bulkRunFinishesWhenTheOutputFallsBehind() throws Exception {
+        // answers far larger than the output file's write queue
+        String large = "y".repeat(64 * 1024);
+        int largePort = await(vertx.createHttpServer().requestHandler(request -> request.body().onSuccess(body ->
+            request.response().end(new JsonObject().put("echo", large).toBuffer()))).listen(0)).actualPort();
+        vertx.fileSystem().mkdirsBlocking("build/bulk-test");
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            ndjson.append(new JsonObject().put("customer_id", i).encode()).append('\n');
+        }
+        vertx.fileSystem().writeFileBlocking("build/bulk-test/slow-input.ndjson", Buffer.buffer(ndjson.toString()));
+
+        AsyncFile output = await(vertx.fileSystem().open("build/bulk-test/slow-output.ndjson",
+            new OpenOptions().setWrite(true).setCreate(true).setTruncateExisting(true)));
+        output.setWriteQueueMaxSize(1024);
+        AsyncFile input = await(vertx.fileSystem().open("build/bulk-test/slow-input.ndjson", new OpenOptions().setRead(true)));
+        input.pause();
+        BulkPipeline pipeline = new BulkPipeline(WebClient.create(vertx),
+            new JsonObject().put("api_endpoint", "http://localhost:" + largePort + "/records"),
+            new ValidatorCache.Formats(SchemaValidator.ANY, SchemaValidator.ANY), output, 1, 1, 1024);
+        // on an event loop, as in the App
+        JsonObject summary = await(Future.<JsonObject>future(promise -> vertx.runOnContext(v -> pipeline.run(input, false).onComplete(promise))));
+        assertEquals(20, summary.getLong("sent"));
+        assertEquals(20, summary.getLong("batches"));
+    }
+
+    @Test void payloadsAreCheckedAgainstTheCurrentFormat() throws Exception {
+        assertSame(SchemaValidator.ANY, SchemaValidator.compile("null"));
+        await(client.post("/task").sendJsonObject(task("validate-me", 700)));
+        long id = await(client.get("/master/task/700").send()).bodyAsJsonArray().getJsonObject(0).getLong("id");
+
+        HttpResponse<Buffer> valid = await(client.post("/task/" + id + "/validate").sendJsonObject(new JsonObject().put("customer_id", 5)));
+        assertEquals(200, valid.statusCode());
+        HttpResponse<Buffer> invalid = await(client.post("/task/" + id + "/validate").sendJsonObject(new JsonObject().put("customer_id", "5")));
+        assertEquals(422, invalid.statusCode());
+        assertEquals("customer_id must be number", invalid.bodyAsJsonObject().getString("error"));
+        assertEquals(200, await(client.post("/task/" + id + "/validate?format=output")
+            .sendJsonObject(new JsonObject().put("invoice", "INV-1"))).statusCode());
+
+        // a new format replaces the compiled one
+        JsonObject format = new JsonObject().put("lines", new JsonArray().add(new JsonObject().put("qty", "integer")));
+        assertEquals(200, await(client.patch("/task/" + id).sendJsonObject(new JsonObject().put("input_format", format))).statusCode());
+        HttpResponse<Buffer> nested = await(client.post("/task/" + id + "/validate")
+            .sendJsonObject(new JsonObject().put("lines", new JsonArray().add(new JsonObject().put("qty", 1)).add(new JsonObject().put("qty", 1.5)))));
+        assertEquals("lines[1].qty must be integer", nested.bodyAsJsonObject().getString("error"));
+
+        // JSON Schema style: only the listed properties are required
+        JsonObject schema = new JsonObject().put("type", "object")
+            .put("properties", new JsonObject()
+                .put("email", new JsonObject().put("type", "string"))
+                .put("age", new JsonObject().put("type", "integer")))
+            .put("required", new JsonArray().add("email"));
+        assertEquals(200, await(client.patch("/task/" + id).sendJsonObject(new JsonObject().put("input_format", schema))).statusCode());
+        assertEquals(200, await(client.post("/task/" + id + "/validate").sendJsonObject(new JsonObject().put("email", "a@b.c"))).statusCode());
+        HttpResponse<Buffer> badAge = await(client.post("/task/" + id + "/validate")
+            .sendJsonObject(new JsonObject().put("email", "a@b.c").put("age", "x")));
+        assertEquals("age must be integer", badAge.bodyAsJsonObject().getString("error"));
+        assertEquals("email is missing", await(client.post("/task/" + id + "/validate")
+            .sendJsonObject(new JsonObject().put("age", 3))).bodyAsJsonObject().getString("error"));
+
+        HttpResponse<Buffer> broken = await(client.patch("/task/" + id)
+            .sendJsonObject(new JsonObject().put("output_format", new JsonObject().put("a", new JsonArray().add("string").add("number")))));
+        assertEquals(400, broken.statusCode());
+    }
+
+    @Test void oversizedAndMalformedBodiesAreRefused() throws Exception {
+        JsonObject large = task("too-large", 800).put("description", "x".repeat(128 * 1024));
+        assertEquals(413, await(client.post("/task").sendJsonObject(large)).statusCode());
+        assertEquals(413, await(client.put("/task/1").sendJsonObject(large)).statusCode());
+        assertEquals(413, await(client.post("/task/batch").sendJson(new JsonArray().add(large).add(large).add(large))).statusCode());
+        assertEquals(413, await(client.post("/task/batch").putHeader("Content-Type", "application/x-ndjson")
+            .sendBuffer(Buffer.buffer(large.encode() + "\n"))).statusCode());
+        assertEquals(0, await(client.get("/master/task/800").send()).bodyAsJsonArray().size());
+
+        assertEquals(400, await(client.post("/task").sendBuffer(Buffer.buffer("{\"slug\": "))).statusCode());
+        assertEquals(400, await(client.post("/master").sendBuffer(Buffer.buffer("[1, 2]"))).statusCode());
+        assertEquals(400, await(client.patch("/task/1").send()).statusCode());
+        assertEquals(0, await(client.get("/master/task/800").send()).bodyAsJsonArray().size());
+    }
+
+    @Test void largeAnswersAreCompressedAndH2cIsServed() throws Exception {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            ndjson.append(task("wire-" + i, 900).encode()).append('\n');
+        }
+        await(client.post("/task/batch").putHeader("Content-Type", "application/x-ndjson").sendBuffer(Buffer.buffer(ndjson.toString())));
+
+        HttpClient http = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(port));
+        HttpClientResponse large = await(http.request(HttpMethod.GET, "/master/task/900")
+            .compose(request -> request.putHeader("Accept-Encoding", "gzip").send())
+            .compose(response -> response.body().map(response)));
+        assertEquals("gzip", large.getHeader("Content-Encoding"));
+        // below compression.min_bytes
+        HttpClientResponse small = await(http.request(HttpMethod.GET, "/task/999999")
+            .compose(request -> request.putHeader("Accept-Encoding", "gzip").send())
+            .compose(response -> response.body().map(response)));
+        assertNull(small.getHeader("Content-Encoding"));
+
+        WebClient h2c = WebClient.create(vertx, new WebClientOptions()
+            .setDefaultPort(port)
+            .setProtocolVersion(HttpVersion.HTTP_2)
+            .setHttp2ClearTextUpgrade(false));
+        HttpResponse<Buffer> multiplexed = await(h2c.get("/master/task/900").send());
+        assertEquals(HttpVersion.HTTP_2, multiplexed.version());
+        assertEquals(10, multiplexed.bodyAsJsonArray().size());
+    }
+
+    @Test void listingsProjectAndFilterInSql() throws Exception {
+        JsonArray items = new JsonArray()
+            .add(task("list-a", 1000).put("service_id", 71))
+            .add(task("list-b", 1000).put("service_id", 72).put("is_active", 0))
+            .add(task("list-c", 1000).put("service_id", 73))
+            .add(task("list-d", 1001).put("service_id", 71));
+        assertEquals(200, await(client.post("/task/batch").sendJson(items)).statusCode());
+
+        JsonArray narrow = await(client.get("/master/task/1000?fields=name,slug").send()).bodyAsJsonArray();
+        assertEquals(3, narrow.size());
+        assertEquals(Set.of("id", "name", "slug"), narrow.getJsonObject(0).fieldNames());
+
+        JsonArray active = await(client.get("/master/task/1000?is_active=1&fields=slug").send()).bodyAsJsonArray();
+        assertEquals(2, active.size());
+
+        HttpResponse<Buffer> page = await(client.get("/task?service_id=71,72&fields=slug&limit=2").send());
+        assertEquals(2, page.bodyAsJsonArray().size());
+        assertNotNull(page.getHeader("X-Next-After-Id"));
+        JsonArray rest = await(client.get("/task?service_id=71,72&fields=slug&limit=2&after_id=" + page.getHeader("X-Next-After-Id")).send()).bodyAsJsonArray();
+        assertEquals("list-d", rest.getJsonObject(0).getString("slug"));
+
+        assertEquals(400, await(client.get("/master/task/1000?fields=name,password").send()).statusCode());
+        assertEquals(400, await(client.get("/task?is_active=yes").send()).statusCode());
+        assertEquals(400, await(client.get("/master?fields=parent_id").send()).statusCode());
+    }
+
+    @Test void subscribersGetCoalescedChangesOfTheirParents() throws Exception {
+        HttpClient http = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(port));
+        StringBuffer received = new StringBuffer();
+        HttpClientResponse stream = await(http.request(HttpMethod.GET, "/events?parent_id=1100").compose(request -> request.send()));
+        assertEquals("text/event-stream", stream.getHeader("Content-Type"));
+        stream.handler(chunk -> received.append(chunk.toString()));
+
+        // created and changed twice within one window: a single created event
+        await(client.post("/task").sendJsonObject(task("live-a", 1100)));
+        await(client.post("/task").sendJsonObject(task("elsewhere", 1101)));
+        long id = await(client.get("/master/task/1100").send()).bodyAsJsonArray().getJsonObject(0).getLong("id");
+        await(client.patch("/task/" + id).sendJsonObject(new JsonObject().put("name", "one")));
+        await(client.patch("/task/" + id).sendJsonObject(new JsonObject().put("name", "two")));
+        waitFor(received, "event: created");
+        Thread.sleep(400);
+        assertEquals(1, count(received.toString(), "event: "), received.toString());
+        assertTrue(received.toString().contains("\"id\":" + id + ","));
+
+        await(client.delete("/task/" + id).send());
+        waitFor(received, "event: deleted");
+        assertFalse(received.toString().contains("1101"));
+        assertEquals(400, await(client.get("/events?parent_id=x").send()).statusCode());
+
+        // 0 picks the masters, a task without a parent is not one of them
+        StringBuffer masters = new StringBuffer();
+        HttpClientResponse masterStream = await(http.request(HttpMethod.GET, "/events?parent_id=0").compose(request -> request.send()));
+        masterStream.handler(chunk -> masters.append(chunk.toString()));
+        await(client.post("/task").sendJsonObject(task("no-parent", 0).putNull("parent_id")));
+        await(client.post("/master").sendJsonObject(task("live-master", 0)));
+        waitFor(masters, "\"type\":\"master\"");
+        assertFalse(masters.toString().contains("\"type\":\"task\""), masters.toString());
+    }
+
+    private static void waitFor(StringBuffer received, String text) throws InterruptedException {
+        for (int i = 0; i < 100 && !received.toString().contains(text); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(received.toString().contains(text), received.toString());
+    }
+
+    private static int count(String text, String part) {
+        return text.split(part, -1).length - 1;
+    }
+
+    @Test void undeployDrainsBeforeClosing() throws Exception {
+        int otherPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            otherPort = socket.getLocalPort();
+        }
+        JsonObject config = config(otherPort).put("shutdown", new JsonObject().put("drain_delay_ms", 300));
+        String deployment = await(vertx.deployVerticle(App::new, new DeploymentOptions().setConfig(config)));
+        WebClient other = WebClient.create(vertx, new WebClientOptions().setDefaultPort(otherPort));
+        assertEquals(200, await(other.get("/health/live").send()).statusCode());
+        assertEquals(200, await(other.get("/health/ready").send()).statusCode());
+
+        HttpClient http = vertx.createHttpClient(new HttpClientOptions().setDefaultPort(otherPort));
+        HttpClientResponse stream = await(http.request(HttpMethod.GET, "/events").compose(request -> request.send()));
+        Future<Buffer> streamed = stream.body();
+
+        Future<Void> undeployed = vertx.undeploy(deployment);
+        Thread.sleep(100);
+        // still answering, but no longer ready and closing connections after each answer
+        HttpResponse<Buffer> draining = await(other.get("/health/ready").send());
+        assertEquals(503, draining.statusCode());
+        assertEquals("close", draining.getHeader("Connection"));
+
+        await(undeployed);
+        // the event stream was ended rather than left open
+        assertNotNull(await(streamed));
+    }
+
+    @Test void migrationsThatWereNotRecordedAreAppliedAgain() throws Exception {
+        Pool pool = TaskRepository.createPool(vertx, config(0).getJsonObject("db").copy()
+            .put("jdbc_url", "jdbc:h2:mem:migratetest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1"));
+        SchemaMigrator migrator = new SchemaMigrator(vertx, pool);
+        await(migrator.createSchema().compose(v -> migrator.migrate()));
+
+        // as after a crash between a script's DDL and its schema_version row
+        await(pool.query("delete from schema_version").execute());
+        await(migrator.migrate());
+        assertEquals(SchemaMigrator.MIGRATIONS.length, await(pool.query("select count(*) from schema_version").execute()).iterator().next().getInteger(0));
+        await(pool.close());
+    }
+
+    @Test void nonNumericIdsAreRejected() throws Exception {
+        assertEquals(400, await(client.get("/task/1%20or%201=1").send()).statusCode());
+    }
+
+    static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
     }
 }
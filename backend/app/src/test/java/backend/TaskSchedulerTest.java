@@ -0,0 +1,115 @@
+package backend;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static backend.AppTest.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the scheduler against a stub HTTP server and H2, with repeats_on counted in 200ms units.
+ */
+class TaskSchedulerTest {
+
+    private Vertx vertx;
+    private Pool pool;
+    private TaskRepository repository;
+    private int port;
+
+    private final ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        pool = TaskRepository.createPool(vertx, db());
+        repository = new TaskRepository(pool);
+        SchemaMigrator migrator = new SchemaMigrator(vertx, pool);
+        await(migrator.createSchema().compose(v -> migrator.migrate()));
+
+        // /ok answers after 100ms, /slow never answers in time
+        port = await(vertx.createHttpServer().requestHandler(request -> {
+            calls.computeIfAbsent(request.path(), k -> new AtomicInteger()).incrementAndGet();
+            if (request.path().equals("/slow")) {
+                vertx.setTimer(2000, id -> request.response().setStatusCode(200).end("late"));
+                return;
+            }
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            vertx.setTimer(100, id -> {
+                inFlight.decrementAndGet();
+                request.response().setStatusCode(200).end("done");
+            });
+        }).listen(0)).actualPort();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    static JsonObject db() {
+        return new JsonObject()
+            .put("jdbc_url", "jdbc:h2:mem:schedulertest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1")
+            .put("driver_class", "org.h2.Driver")
+            .put("user", "sa")
+            .put("password", "")
+            .put("max_pool_size", 4);
+    }
+
+    private JsonObject task(String path, int serviceId, int timeoutMs) {
+        return new JsonObject()
+            .put("slug", path)
+            .put("api_endpoint", "http://localhost:" + port + path)
+            .put("input_http_method", 1)
+            .put("api_timeout_in_ms", timeoutMs)
+            .put("repeats_on", 1)
+            .put("is_active", 1)
+            .put("service_id", serviceId)
+            .put("parent_id", 1);
+    }
+
+    @Test void callsDueTasksWithinTheServiceLimitAndRecordsRuns() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            await(repository.insertTask(task("/ok", 9, 1000)));
+        }
+        Object slowId = TaskRepository.insertedId(await(repository.insertTask(task("/slow", 10, 150))));
+
+        JsonObject config = new JsonObject()
+            .put("db", db())
+            .put("scheduler", new JsonObject()
+                .put("tick_ms", 20)
+                .put("repeat_unit_ms", 200)
+                .put("max_concurrent_per_service", 2)
+                .put("result_flush_ms", 100));
+        String deployment = await(vertx.deployVerticle(new TaskScheduler(), new DeploymentOptions().setConfig(config)));
+
+        Thread.sleep(1500);
+        await(vertx.undeploy(deployment));
+
+        assertTrue(calls.get("/ok").get() >= 8, "every /ok task was called repeatedly");
+        // the /ok tasks share service 9, which allows two calls at a time
+        assertTrue(maxInFlight.get() <= 2, "in flight " + maxInFlight.get());
+
+        JsonArray slowRuns = new JsonArray();
+        for (Row row : await(pool.query("select * from task_runs where task_id = " + slowId).execute())) {
+            slowRuns.add(row.toJson());
+        }
+        assertFalse(slowRuns.isEmpty());
+        assertNull(slowRuns.getJsonObject(0).getValue("status_code"));
+        assertNotNull(slowRuns.getJsonObject(0).getValue("error"));
+
+        Row ok = await(pool.query("select count(*) from task_runs where status_code = 200").execute()).iterator().next();
+        assertTrue(((Number) ok.getValue(0)).intValue() >= 8);
+    }
+}
@@ -0,0 +1,183 @@
+package backend;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.Row;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static backend.AppTest.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs App with write-behind on, against H2, with the stripes' journals in a temporary directory.
+ */
+class WriteBehindTest {
+
+    @TempDir
+    Path journal;
+
+    private Vertx vertx;
+    private Pool pool;
+    private TaskRepository repository;
+    private long taskId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        pool = TaskRepository.createPool(vertx, db());
+        repository = new TaskRepository(pool);
+        SchemaMigrator migrator = new SchemaMigrator(vertx, pool);
+        await(migrator.createSchema().compose(v -> migrator.migrate()));
+        taskId = ((Number) TaskRepository.insertedId(await(repository.insertTask(AppTest.task("wb-" + System.nanoTime(), 1))))).longValue();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    static JsonObject db() {
+        return new JsonObject()
+            .put("jdbc_url", "jdbc:h2:mem:writebehindtest;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1")
+            .put("driver_class", "org.h2.Driver")
+            .put("user", "sa")
+            .put("password", "")
+            .put("max_pool_size", 4);
+    }
+
+    private JsonObject config(int port, long windowMs) {
+        return new JsonObject()
+            .put("http", new JsonObject().put("port", port))
+            .put("db", db())
+            .put("write_behind", new JsonObject()
+                .put("enabled", true)
+                .put("stripes", 2)
+                .put("window_ms", windowMs)
+                .put("journal_dir", journal.toString()));
+    }
+
+    private Row task() throws Exception {
+        return await(repository.getTask(taskId)).iterator().next();
+    }
+
+    @Test void updatesOfATaskAreMergedIntoOneWrite() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        JsonObject config = config(port, 300);
+        await(WriteBehind.deploy(vertx, config));
+        await(vertx.deployVerticle(App::new, new DeploymentOptions().setConfig(config)));
+        WebClient client = WebClient.create(vertx, new WebClientOptions().setDefaultPort(port));
+
+        for (String name : new String[]{"first", "second", "third"}) {
+            assertEquals(202, await(client.patch("/task/" + taskId).sendJsonObject(new JsonObject().put("name", name))).statusCode());
+        }
+        assertEquals(202, await(client.patch("/task/" + taskId).sendJsonObject(new JsonObject().put("service_id", 9))).statusCode());
+        assertEquals(404, await(client.patch("/task/999999").sendJsonObject(new JsonObject().put("name", "x"))).statusCode());
+        assertEquals(400, await(client.patch("/task/" + taskId).sendJsonObject(new JsonObject().put("name", "x".repeat(300)))).statusCode());
+        // If-Match still writes directly
+        assertEquals(412, await(client.patch("/task/" + taskId).putHeader("If-Match", "\"7\"")
+            .sendJsonObject(new JsonObject().put("name", "lost"))).statusCode());
+
+        for (int i = 0; i < 60 && task().getInteger("version") == 0; i++) {
+            Thread.sleep(50);
+        }
+        Row row = task();
+        assertEquals(1, row.getInteger("version"), "four updates, one row write");
+        assertEquals("third", row.getString("name"));
+        assertEquals(9, row.getInteger("service_id"));
+    }
+
+    @Test void updateTheDatabaseRefusesIsDropped() throws Exception {
+        long otherId = ((Number) TaskRepository.insertedId(await(repository.insertTask(AppTest.task("wb-" + System.nanoTime(), 1))))).longValue();
+        String tooLong = "x".repeat(300);
+        assertEquals("name must be at most 255 characters", TaskRepository.invalidColumn(new JsonObject().put("name", tooLong)));
+        assertNull(TaskRepository.invalidColumn(new JsonObject().put("name", "fine").put("is_active", true).put("input_format", new JsonObject())));
+
+        // past the check in App, e.g. from a journal of an older version
+        await(vertx.deployVerticle(new WriteBehind(0), new DeploymentOptions().setConfig(config(0, 50))));
+        await(vertx.eventBus().request(WriteBehind.ADDRESS + 0, new JsonObject().put("id", taskId).put("changes", new JsonObject().put("name", tooLong))));
+        await(vertx.eventBus().request(WriteBehind.ADDRESS + 0, new JsonObject().put("id", otherId).put("changes", new JsonObject().put("name", "written"))));
+
+        for (int i = 0; i < 60 && !"written".equals(await(repository.getTask(otherId)).iterator().next().getString("name")); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("written", await(repository.getTask(otherId)).iterator().next().getString("name"));
+        assertEquals(0, task().getInteger("version"));
+        // and the stripe goes on
+        await(vertx.eventBus().request(WriteBehind.ADDRESS + 0, new JsonObject().put("id", taskId).put("changes", new JsonObject().put("name", "later"))));
+        for (int i = 0; i < 60 && task().getInteger("version") == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("later", task().getString("name"));
+    }
+
+    @Test void journalIsReplayedOnStartAndWrittenOnStop() throws Exception {
+        // what a stripe left behind when its process died, the last line cut short
+        Files.writeString(journal.resolve("write-behind-1-5.log"),
+            new JsonObject().put("id", taskId).put("changes", new JsonObject().put("name", "replayed")).encode() + "\n"
+            + new JsonObject().put("id", taskId).put("changes", new JsonObject().put("is_active", 0)).encode() + "\n"
+            + "{\"id\": " + taskId + ", \"chan");
+
+        // no flush within the test, so the rows are written by stop()
+        JsonObject config = config(0, 60000);
+        String deployment = await(vertx.deployVerticle(new WriteBehind(1), new DeploymentOptions().setConfig(config)));
+        assertEquals(0, task().getInteger("version"));
+        await(vertx.undeploy(deployment));
+
+        Row row = task();
+        assertEquals("replayed", row.getString("name"));
+        assertEquals(0, row.getInteger("is_active"));
+        try (var files = Files.list(journal)) {
+            assertEquals(0, files.count(), "the journal is gone once it is in the database");
+        }
+    }
+
+    @Test void stripeLeavesTheJournalOfAnotherStripeAlone() throws Exception {
+        long otherId = ((Number) TaskRepository.insertedId(await(repository.insertTask(AppTest.task("wb-" + System.nanoTime(), 1))))).longValue();
+        JsonObject config = config(0, 50);
+        // stripe 0 has opened its files by the time stripe 1 looks into the directory
+        String first = await(vertx.deployVerticle(new WriteBehind(0), new DeploymentOptions().setConfig(config)));
+        String second = await(vertx.deployVerticle(new WriteBehind(1), new DeploymentOptions().setConfig(config)));
+        assertTrue(Files.exists(journal.resolve("write-behind-0-1.log")));
+
+        // stripe 1 flushes and stops, which deletes every file it replayed
+        await(vertx.eventBus().request(WriteBehind.ADDRESS + 1, new JsonObject().put("id", otherId).put("changes", new JsonObject().put("name", "second"))));
+        await(vertx.undeploy(second));
+        assertEquals("second", await(repository.getTask(otherId)).iterator().next().getString("name"));
+        assertTrue(Files.exists(journal.resolve("write-behind-0-1.log")), "stripe 0 still appends to it");
+        assertTrue(Files.exists(journal.resolve("write-behind-0-2.log")));
+
+        await(vertx.eventBus().request(WriteBehind.ADDRESS + 0, new JsonObject().put("id", taskId).put("changes", new JsonObject().put("name", "first"))));
+        assertTrue(Files.readString(journal.resolve("write-behind-0-1.log")).contains("\"first\""));
+        await(vertx.undeploy(first));
+        assertEquals("first", task().getString("name"));
+    }
+
+    @Test void journalOfAnyStripeIsWrittenWithWriteBehindOff() throws Exception {
+        // left by a run with more stripes
+        Files.writeString(journal.resolve("write-behind-7-2.log"),
+            new JsonObject().put("id", taskId).put("changes", new JsonObject().put("name", "orphaned")).encode() + "\n");
+
+        JsonObject config = config(0, 60000);
+        config.getJsonObject("write_behind").put("enabled", false);
+        assertTrue(await(WriteBehind.deploy(vertx, config)).isEmpty());
+
+        assertEquals("orphaned", task().getString("name"));
+        try (var files = Files.list(journal)) {
+            assertEquals(0, files.count());
+        }
+    }
+}